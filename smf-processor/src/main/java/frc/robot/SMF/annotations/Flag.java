@@ -0,0 +1,14 @@
+package frc.robot.SMF.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The annotated constant is only ever set as a flag, never entered as a state. It can't be the
+ * target of a transition and is left off the state chooser
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Flag {}
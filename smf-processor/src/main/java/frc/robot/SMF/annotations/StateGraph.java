@@ -0,0 +1,21 @@
+package frc.robot.SMF.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generate a state table for a state machine's enum at compile time. The table is a class named
+ * after the enum and the classes it is nested in, with "Table" on the end (e.g. {@code
+ * Shooter.State} becomes {@code ShooterStateTable}), in the same package. Its transitions are
+ * declared with {@link Omni}, {@link Transition} and {@link Flag} on the enum constants
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface StateGraph {
+  /**
+   * @return the name of the constant the machine starts in before it is determined
+   */
+  String undetermined() default "UNDETERMINED";
+}
@@ -0,0 +1,23 @@
+package frc.robot.SMF.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Transitions from the annotated state to other states of the same enum */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+@Repeatable(Transitions.class)
+public @interface Transition {
+  /**
+   * @return the names of the states to go to, checked against the enum when compiling
+   */
+  String[] to();
+
+  /**
+   * @return whether to also add the transitions back to the annotated state
+   */
+  boolean commutative() default false;
+}
@@ -0,0 +1,278 @@
+package frc.robot.SMF.processor;
+
+import frc.robot.SMF.annotations.Flag;
+import frc.robot.SMF.annotations.Omni;
+import frc.robot.SMF.annotations.StateGraph;
+import frc.robot.SMF.annotations.Transition;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a flat state table for every enum annotated with {@link StateGraph}, so a state
+ * machine's states, names, flags and transitions are fixed when the robot code is compiled instead
+ * of being collected at construction. Mistakes in the declarations (a transition to a state that
+ * doesn't exist, or to a flag) are compile errors
+ */
+@SupportedAnnotationTypes("frc.robot.SMF.annotations.StateGraph")
+public class StateGraphProcessor extends AbstractProcessor {
+  private static final String TABLE_INTERFACE = "frc.robot.SMF.StateTable";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+    for (Element element : round.getElementsAnnotatedWith(StateGraph.class)) {
+      if (element.getKind() != ElementKind.ENUM) {
+        error(element, "@StateGraph can only be put on an enum");
+        continue;
+      }
+
+      generate((TypeElement) element);
+    }
+
+    return true;
+  }
+
+  private void generate(TypeElement type) {
+    List<Element> constants = new ArrayList<>();
+    Map<String, Integer> ordinals = new HashMap<>();
+    for (Element enclosed : type.getEnclosedElements()) {
+      if (enclosed.getKind() == ElementKind.ENUM_CONSTANT) {
+        ordinals.put(enclosed.getSimpleName().toString(), constants.size());
+        constants.add(enclosed);
+      }
+    }
+
+    String undetermined = type.getAnnotation(StateGraph.class).undetermined();
+    Integer undeterminedOrdinal = ordinals.get(undetermined);
+    if (undeterminedOrdinal == null) {
+      error(type, "@StateGraph undetermined state " + undetermined + " is not a constant");
+      return;
+    }
+
+    int count = constants.size();
+    boolean[] flags = new boolean[count];
+    boolean[] omni = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      flags[i] = constants.get(i).getAnnotation(Flag.class) != null;
+      omni[i] = constants.get(i).getAnnotation(Omni.class) != null;
+    }
+
+    boolean valid = true;
+    if (flags[undeterminedOrdinal] || omni[undeterminedOrdinal]) {
+      error(constants.get(undeterminedOrdinal), "the undetermined state can't be a flag or omni");
+      valid = false;
+    }
+
+    // start * count + end, in declaration order with duplicates dropped
+    Set<Integer> edges = new LinkedHashSet<>();
+    for (int start = 0; start < count; start++) {
+      Element constant = constants.get(start);
+
+      if (flags[start] && omni[start]) {
+        error(constant, "a flag can't be an omni state");
+        valid = false;
+      }
+
+      for (Transition transition : constant.getAnnotationsByType(Transition.class)) {
+        if (flags[start]) {
+          error(constant, "a flag can't have transitions");
+          valid = false;
+        }
+
+        for (String name : transition.to()) {
+          Integer end = ordinals.get(name);
+          if (end == null) {
+            error(constant, "transition to " + name + ", which is not a constant of " + type);
+            valid = false;
+          } else if (end == start) {
+            error(constant, "transition from " + name + " to itself");
+            valid = false;
+          } else if (flags[end] || end.equals(undeterminedOrdinal)) {
+            error(constant, "transition to " + name + ", which can't be entered as a state");
+            valid = false;
+          } else {
+            edges.add(start * count + end);
+            if (transition.commutative()) edges.add(end * count + start);
+          }
+        }
+      }
+    }
+
+    if (valid) write(type, constants, undeterminedOrdinal, flags, omni, edges);
+  }
+
+  private void write(
+      TypeElement type,
+      List<Element> constants,
+      int undetermined,
+      boolean[] flags,
+      boolean[] omni,
+      Set<Integer> edges) {
+    String packageName =
+        processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    String enumName = type.getQualifiedName().toString();
+    String tableName = tableName(type);
+    int count = constants.size();
+
+    StringBuilder states = new StringBuilder();
+    StringBuilder names = new StringBuilder();
+    for (Element constant : constants) {
+      states.append("    ").append(enumName).append('.').append(constant.getSimpleName());
+      states.append(",\n");
+      names.append("    \"").append(constant.getSimpleName()).append("\",\n");
+    }
+
+    StringBuilder starts = new StringBuilder();
+    StringBuilder ends = new StringBuilder();
+    for (int edge : edges) {
+      if (starts.length() > 0) {
+        starts.append(", ");
+        ends.append(", ");
+      }
+      starts.append(edge / count);
+      ends.append(edge % count);
+    }
+
+    String source =
+        (packageName.isEmpty() ? "" : "package " + packageName + ";\n\n")
+            + "/** State table for {@link "
+            + enumName
+            + "}, generated from its annotations */\n"
+            + "@javax.annotation.processing.Generated(\""
+            + getClass().getName()
+            + "\")\n"
+            + "public final class "
+            + tableName
+            + " implements "
+            + TABLE_INTERFACE
+            + "<"
+            + enumName
+            + "> {\n"
+            + "  public static final "
+            + tableName
+            + " INSTANCE = new "
+            + tableName
+            + "();\n\n"
+            + "  private static final "
+            + enumName
+            + "[] STATES = {\n"
+            + states
+            + "  };\n"
+            + "  private static final String[] NAMES = {\n"
+            + names
+            + "  };\n"
+            + "  private static final boolean[] FLAGS = {"
+            + join(flags)
+            + "};\n"
+            + "  private static final boolean[] OMNI = {"
+            + join(omni)
+            + "};\n"
+            + "  // index [transition]\n"
+            + "  private static final int[] TRANSITION_STARTS = {"
+            + starts
+            + "};\n"
+            + "  private static final int[] TRANSITION_ENDS = {"
+            + ends
+            + "};\n\n"
+            + "  private "
+            + tableName
+            + "() {}\n\n"
+            + "  @Override\n"
+            + "  public Class<"
+            + enumName
+            + "> getEnumType() {\n"
+            + "    return "
+            + enumName
+            + ".class;\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public "
+            + enumName
+            + " getUndeterminedState() {\n"
+            + "    return STATES["
+            + undetermined
+            + "];\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public "
+            + enumName
+            + "[] getStates() {\n"
+            + "    return STATES.clone();\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public String getName(int ordinal) {\n"
+            + "    return NAMES[ordinal];\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public boolean isFlag(int ordinal) {\n"
+            + "    return FLAGS[ordinal];\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public boolean isOmni(int ordinal) {\n"
+            + "    return OMNI[ordinal];\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public int getTransitionCount() {\n"
+            + "    return TRANSITION_STARTS.length;\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public int getTransitionStart(int index) {\n"
+            + "    return TRANSITION_STARTS[index];\n"
+            + "  }\n\n"
+            + "  @Override\n"
+            + "  public int getTransitionEnd(int index) {\n"
+            + "    return TRANSITION_ENDS[index];\n"
+            + "  }\n"
+            + "}\n";
+
+    String qualifiedTable = packageName.isEmpty() ? tableName : packageName + "." + tableName;
+    try (Writer writer =
+        processingEnv.getFiler().createSourceFile(qualifiedTable, type).openWriter()) {
+      writer.write(source);
+    } catch (IOException e) {
+      error(type, "could not write " + qualifiedTable + ": " + e.getMessage());
+    }
+  }
+
+  // the enum's simple name after the simple names of every class it is nested in
+  private static String tableName(TypeElement type) {
+    StringBuilder name = new StringBuilder(type.getSimpleName());
+    Element enclosing = type.getEnclosingElement();
+    while (enclosing != null && enclosing.getKind() != ElementKind.PACKAGE) {
+      name.insert(0, enclosing.getSimpleName());
+      enclosing = enclosing.getEnclosingElement();
+    }
+    return name.append("Table").toString();
+  }
+
+  private static String join(boolean[] values) {
+    StringBuilder joined = new StringBuilder();
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) joined.append(", ");
+      joined.append(values[i]);
+    }
+    return joined.toString();
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
@@ -39,6 +39,12 @@ public final class Constants {
   // Whether to use the old tuning (soft, original notes) or the new tuning (hard, new notes)
   public static final boolean USE_ORIGINAL_TUNING = true;
 
+  // Turns off debugging features that cost loop time, like the state machine dashboard choosers
+  public static final boolean COMPETITION_BUILD = false;
+
+  // Times every part of each state machine's periodic(), only for tracking down loop overruns
+  public static final boolean PROFILE_STATE_MACHINES = false;
+
   public static final CurrentLimitsConfigs DEFAULT_CURRENT_LIMIT =
       new CurrentLimitsConfigs().withSupplyCurrentLimit(20).withSupplyCurrentLimitEnable(true);
 
@@ -115,6 +121,25 @@ public static final class PhysicalConstants {
   public static class Drivetrain {
     
     public static final double MAX_ANGULAR_RATE = 4 * Math.PI;
+    // radians of heading error to radians per second, for the heading lock in the aim states
+    public static final PIDConstants HEADING_PID = new PIDConstants(6, 0, 0);
+
+    // for the swerve setpoint generator's acceleration and steering limits
+    public static final double ROBOT_MASS_KG = 60; // estimate, with bumpers and battery
+    public static final double WHEEL_COF = 1.1;
+    public static final double DRIVE_MOTOR_KT = 0.0194; // newton meters per amp, Kraken X60
+    public static final double STEER_MOTOR_FREE_SPEED = Units.rotationsPerMinuteToRadiansPerSecond(6000);
+
+    // meters per second the robot drives at while tracking a note in AUTO_INTAKE, once it's lined up
+    public static final double AUTO_INTAKE_SPEED = 4.0;
+
+    // collision and skid detection, past any of these the odometry can't be trusted for a moment
+    public static final double COLLISION_ACCEL_G = 2.0; // more than the wheels can push, so something hit us
+    public static final double SKID_MODULE_ERROR = 0.5; // meters per second a module is off the rigid body fit
+    public static final double SKID_YAW_RATE_ERROR = 1.0; // radians per second between the gyro and the wheels
+    public static final double DISTURBANCE_HOLD_TIME = 0.5; // seconds the odometry stays untrusted after the last one
+    // vision xy std devs are scaled by this while disturbed, so the estimator snaps back to the cameras
+    public static final double DISTURBED_VISION_STD_DEV_SCALE = 0.1;
   }
   public static final class Vision {
 
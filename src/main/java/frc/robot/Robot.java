@@ -7,26 +7,57 @@ package frc.robot;
 import org.littletonrobotics.junction.LoggedRobot;
 import org.littletonrobotics.junction.Logger;
 
+import java.nio.file.Path;
+
+import edu.wpi.first.wpilibj.RobotBase;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
 
+import frc.robot.SMF.LogMode;
 import frc.robot.SMF.SubsystemManagerFactory;
 
 public class Robot extends LoggedRobot {
 
   private RobotContainer m_robotContainer;
 
+  // scheduler churn, commands started and interrupted since the last loop
+  private int m_commandsInitialized = 0;
+  private int m_commandsInterrupted = 0;
+
   @Override
   public void robotInit() {
     m_robotContainer = new RobotContainer();
     Logger.start();
 
     SubsystemManagerFactory.getInstance().registerSubsystem(m_robotContainer, false);
+    // only log state machine outputs when they change, with a full keyframe every second
+    SubsystemManagerFactory.getInstance().setLogMode(LogMode.ON_CHANGE, 50);
+    // send the blocking CAN requests of every subsystem at once when a mode starts
+    SubsystemManagerFactory.getInstance().setParallelDetermination(true, 0.1);
+    // pick back up where we were if the program restarts mid-match (e.g. after a brownout). The
+    // roboRIO takes tens of seconds to bring the program back, so allow a minute
+    SubsystemManagerFactory.getInstance().enableSnapshots(
+        RobotBase.isReal() ? Path.of("/home/lvuser/smf-snapshot.bin") : Path.of("smf-snapshot.bin"), 60, 5);
+    if (!Constants.COMPETITION_BUILD) {
+      SubsystemManagerFactory.getInstance().enableStateChoosers();
+      // find out which state machine is eating the loop when it overruns
+      SubsystemManagerFactory.getInstance().setProfiling(Constants.PROFILE_STATE_MACHINES, getPeriod());
+    }
     SubsystemManagerFactory.getInstance().disableAllSubsystems();
+
+    CommandScheduler.getInstance().onCommandInitialize((command) -> m_commandsInitialized++);
+    CommandScheduler.getInstance().onCommandInterrupt((command) -> m_commandsInterrupted++);
   }
 
   @Override
   public void robotPeriodic() {
     CommandScheduler.getInstance().run(); 
+    Logger.recordOutput("Scheduler/CommandsInitialized", m_commandsInitialized);
+    Logger.recordOutput("Scheduler/CommandsInterrupted", m_commandsInterrupted);
+    m_commandsInitialized = 0;
+    m_commandsInterrupted = 0;
+    SubsystemManagerFactory.getInstance().settleSubsystems();
+    SubsystemManagerFactory.getInstance().captureSnapshot();
+    SubsystemManagerFactory.getInstance().updateProfiles();
   }
 
   @Override
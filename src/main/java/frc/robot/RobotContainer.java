@@ -150,6 +150,7 @@ public class RobotContainer extends StateMachine<RobotContainer.State>{
     addOmniTransition(State.HUMAN_INTAKE);
 
     addOmniTransition(State.SOFT_E_STOP);
+    setSafetyState(State.SOFT_E_STOP);
     addOmniTransition(State.TRAVERSING);
     addOmniTransition(State.LOST_NOTE);
     addOmniTransition(State.CLEANSE);
@@ -197,7 +198,7 @@ public class RobotContainer extends StateMachine<RobotContainer.State>{
         indexer.transitionCommand(Indexer.State.IDLE)
         //shooter.transitionCommand(Shooter.State.TRAVERSING)
       ),
-      new WaitUntilCommand(() -> indexer.getState() == Indexer.State.LOST_NOTE),
+      indexer.waitForState(Indexer.State.LOST_NOTE),
       transitionCommand(State.LOST_NOTE)                                                                                              
     ));
 
@@ -249,7 +250,7 @@ public class RobotContainer extends StateMachine<RobotContainer.State>{
           //shooter.transitionCommand(Shooter.State.CHUTE_INTAKE),
           intake.transitionCommand(Intake.State.IDLE)
         ),
-        new WaitUntilCommand(()-> indexer.getState() == Indexer.State.HAS_NOTE),
+        indexer.waitForState(Indexer.State.HAS_NOTE),
         transitionCommand(State.TRAVERSING)
       )
     );
@@ -261,11 +262,11 @@ public class RobotContainer extends StateMachine<RobotContainer.State>{
           intake.transitionCommand(Intake.State.IDLE),
           indexer.transitionCommand(Indexer.State.IDLE)
         ),
-        new WaitUntilCommand(() -> indexer.getState() == Indexer.State.HAS_NOTE),
+        indexer.waitForState(Indexer.State.HAS_NOTE),
       //shooter.transitionCommand(Shooter.State.SPEAKER_AA),
       //new WaitUntilCommand(() -> feedToShooter() && shooter.isFlag(Shooter.State.READY)),
       indexer.transitionCommand(Indexer.State.FEED_TO_SHOOTER),
-      new WaitUntilCommand(() -> indexer.getState() == Indexer.State.IDLE || indexer.getState() == Indexer.State.LOST_NOTE),
+      indexer.waitForAnyState(Indexer.State.IDLE, Indexer.State.LOST_NOTE),
       transitionCommand(State.TRAVERSING)
       )
     );
@@ -277,11 +278,11 @@ public class RobotContainer extends StateMachine<RobotContainer.State>{
           intake.transitionCommand(Intake.State.IDLE),
           indexer.transitionCommand(Indexer.State.IDLE)
         ),
-        new WaitUntilCommand(() -> indexer.getState() == Indexer.State.HAS_NOTE),
+        indexer.waitForState(Indexer.State.HAS_NOTE),
         //shooter.transitionCommand(Shooter.State.LOB_ACTIVE_ADJUST),
         //new WaitUntilCommand(() -> feedToShooter() && shooter.isFlag(Shooter.State.READY)),
         indexer.transitionCommand(Indexer.State.FEED_TO_SHOOTER),
-        new WaitUntilCommand(() -> indexer.getState() == Indexer.State.IDLE || indexer.getState() == Indexer.State.LOST_NOTE),
+        indexer.waitForAnyState(Indexer.State.IDLE, Indexer.State.LOST_NOTE),
         transitionCommand(State.TRAVERSING)
       )
     );
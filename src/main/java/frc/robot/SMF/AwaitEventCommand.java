@@ -0,0 +1,67 @@
+package frc.robot.SMF;
+
+import edu.wpi.first.wpilibj2.command.Command;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A command that finishes as soon as an event it is subscribed to fires, instead of polling a
+ * condition every loop. The event is dispatched synchronously by whatever fires it, so the command
+ * is finished by the next time the scheduler checks it, even if the condition has already changed
+ * again by then. The command only listens while it is running, so building these on the fly doesn't
+ * leave listeners behind
+ */
+public class AwaitEventCommand extends Command {
+  private final BooleanSupplier alreadyHappened;
+  private Runnable subscribe;
+  private Runnable unsubscribe;
+  private boolean waiting;
+  private boolean happened;
+
+  /**
+   * @param alreadyHappened whether the event should be treated as having happened when the command
+   *     starts
+   */
+  public AwaitEventCommand(BooleanSupplier alreadyHappened) {
+    this.alreadyHappened = alreadyHappened;
+    subscribe = () -> {};
+    unsubscribe = () -> {};
+    waiting = false;
+    happened = false;
+  }
+
+  /**
+   * Set how the command starts and stops listening for the event
+   *
+   * @param subscribe registers the listener that calls {@link #signal()}, run when the command starts
+   * @param unsubscribe removes that same listener, run when the command ends
+   * @return this command
+   */
+  public AwaitEventCommand withSubscription(Runnable subscribe, Runnable unsubscribe) {
+    this.subscribe = subscribe;
+    this.unsubscribe = unsubscribe;
+    return this;
+  }
+
+  /** Signal that the event happened. Does nothing if the command isn't currently waiting */
+  public void signal() {
+    if (waiting) happened = true;
+  }
+
+  @Override
+  public void initialize() {
+    subscribe.run();
+    happened = alreadyHappened.getAsBoolean();
+    waiting = true;
+  }
+
+  @Override
+  public boolean isFinished() {
+    return happened;
+  }
+
+  @Override
+  public void end(boolean interrupted) {
+    waiting = false;
+    unsubscribe.run();
+  }
+}
@@ -0,0 +1,12 @@
+package frc.robot.SMF;
+
+/** How a {@link StateMachine} records its state, desired state, transitioning, and flag outputs */
+public enum LogMode {
+  /** Record every output on every loop */
+  EVERY_LOOP,
+  /**
+   * Only record an output on loops where it changed, plus a periodic keyframe of every output so
+   * the timeline can still be rebuilt from any point in the log
+   */
+  ON_CHANGE
+}
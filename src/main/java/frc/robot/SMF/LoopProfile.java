@@ -0,0 +1,118 @@
+package frc.robot.SMF;
+
+import java.util.Arrays;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * CPU time spent in each part of a single state machine's periodic(), collected over a window of
+ * loops. Every array is preallocated when profiling is turned on, so neither recording a loop nor
+ * publishing a window allocates
+ */
+class LoopProfile {
+  static final int CHOOSER = 0;
+  static final int TRANSITIONS = 1;
+  static final int LOGGING = 2;
+  static final int UPDATE = 3;
+  static final int TOTAL = 4;
+
+  private static final String[] SECTION_NAMES = {
+    "chooser", "transitions", "logging", "update", "total"
+  };
+  private static final int SECTIONS = SECTION_NAMES.length;
+
+  private final String name;
+
+  // below this many loops the 99th percentile is just the slowest loop
+  private static final int MIN_P99_LOOPS = 100;
+
+  // index [section][loop in window]
+  private final long[][] samples;
+  private final long[] sorted;
+  private int loops;
+  private long lastLoopNanos;
+
+  private final double[] minMs = new double[SECTIONS];
+  private final double[] avgMs = new double[SECTIONS];
+  private final double[] maxMs = new double[SECTIONS];
+  private final double[] p99Ms = new double[SECTIONS];
+
+  private final String sectionsKey;
+  private final String minKey;
+  private final String avgKey;
+  private final String maxKey;
+  private final String p99Key;
+
+  /**
+   * @param name the name of the profiled machine
+   * @param windowLoops the number of loops summarized by each publish
+   */
+  LoopProfile(String name, int windowLoops) {
+    this.name = name;
+
+    samples = new long[SECTIONS][windowLoops];
+    sorted = new long[windowLoops];
+
+    sectionsKey = name + "/profile/sections";
+    minKey = name + "/profile/minMs";
+    avgKey = name + "/profile/avgMs";
+    maxKey = name + "/profile/maxMs";
+    p99Key = name + "/profile/p99Ms";
+  }
+
+  /** Record the nanoseconds spent in each section of one periodic() */
+  void record(long chooser, long transitions, long logging, long update) {
+    // a window that was not published yet wraps around and keeps only the newest loops
+    int i = loops % sorted.length;
+
+    samples[CHOOSER][i] = chooser;
+    samples[TRANSITIONS][i] = transitions;
+    samples[LOGGING][i] = logging;
+    samples[UPDATE][i] = update;
+    lastLoopNanos = chooser + transitions + logging + update;
+    samples[TOTAL][i] = lastLoopNanos;
+
+    loops++;
+  }
+
+  /**
+   * @return the nanoseconds spent in the most recent periodic()
+   */
+  long getLastLoopNanos() {
+    return lastLoopNanos;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Publish min/avg/max of every section over the loops recorded since the last publish, and the
+   * p99 once there are enough loops for it to differ from the max (NaN until then)
+   */
+  void publish() {
+    int count = Math.min(loops, sorted.length);
+    if (count == 0) return;
+
+    for (int section = 0; section < SECTIONS; section++) {
+      System.arraycopy(samples[section], 0, sorted, 0, count);
+      Arrays.sort(sorted, 0, count);
+
+      long total = 0;
+      for (int i = 0; i < count; i++) total += sorted[i];
+
+      minMs[section] = sorted[0] / 1e6;
+      avgMs[section] = total / 1e6 / count;
+      maxMs[section] = sorted[count - 1] / 1e6;
+      p99Ms[section] =
+          count < MIN_P99_LOOPS ? Double.NaN : sorted[(int) Math.ceil(count * 0.99) - 1] / 1e6;
+    }
+
+    Logger.recordOutput(sectionsKey, SECTION_NAMES);
+    Logger.recordOutput(minKey, minMs);
+    Logger.recordOutput(avgKey, avgMs);
+    Logger.recordOutput(maxKey, maxMs);
+    Logger.recordOutput(p99Key, p99Ms);
+
+    loops = 0;
+  }
+}
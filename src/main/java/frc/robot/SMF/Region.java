@@ -0,0 +1,55 @@
+package frc.robot.SMF;
+
+/**
+ * A child state machine driven as an orthogonal region of its parent: each state of the parent
+ * can name the state the region should be in, and the region is sent there as soon as the parent
+ * enters that state
+ */
+final class Region<C extends Enum<C>> {
+  private final StateMachine<C> machine;
+  // index [parent state ordinal], null if the parent state leaves the region alone
+  private final C[] targets;
+  private C readyFlag;
+
+  @SuppressWarnings("unchecked")
+  Region(StateMachine<C> machine, int parentStateCount) {
+    this.machine = machine;
+    targets = (C[]) new Enum<?>[parentStateCount];
+    readyFlag = null;
+  }
+
+  StateMachine<C> getMachine() {
+    return machine;
+  }
+
+  void setTarget(int parentState, C target) {
+    targets[parentState] = target;
+  }
+
+  void setReadyFlag(C flag) {
+    readyFlag = flag;
+  }
+
+  boolean canEnter() {
+    return machine.isDetermined();
+  }
+
+  /** Send the region to its target for the given parent state, if it has one */
+  void enter(int parentState) {
+    C target = targets[parentState];
+    if (target != null) machine.requestTransition(target);
+  }
+
+  /**
+   * @return whether the region has settled into its target for the given parent state and raised
+   *     its ready flag. Regions without a target or a ready flag are always ready
+   */
+  boolean isReady(int parentState) {
+    C target = targets[parentState];
+    if (target == null || readyFlag == null) return true;
+
+    return machine.getState() == target
+        && !machine.isTransitioning()
+        && machine.isFlag(readyFlag);
+  }
+}
@@ -2,32 +2,116 @@ package frc.robot.SMF;
 
 import edu.wpi.first.util.sendable.Sendable;
 import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.*;
 import frc.robot.SMF.graph.DirectionalEnumGraph;
 import frc.robot.SMF.transitions.CommandTransition;
 import frc.robot.SMF.transitions.TransitionBase;
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import org.littletonrobotics.junction.LogTable;
 import org.littletonrobotics.junction.Logger;
-import org.littletonrobotics.junction.networktables.LoggedDashboardChooser;
+import org.littletonrobotics.junction.inputs.LoggableInputs;
 
 public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
   private final DirectionalEnumGraph<E, TransitionBase<E>> transitionGraph;
   private TransitionBase<E> currentTransition;
-  private TransitionBase<E> queuedTransition;
-  private final HashMap<E, Command> stateCommands;
+  // The state that was last requested, which may be more than one transition away
+  private E routeTarget;
+  private double routeRequestTime;
+
+  // Requests waiting for the running transition, ordered from highest to lowest priority. A new
+  // request replaces every pending request with the same or a lower priority, so the priorities in
+  // the queue are always strictly decreasing
+  private static final int MAX_PENDING_REQUESTS = 4;
+  private final E[] pendingRequests;
+  private final double[] pendingRequestTimes;
+  private int pendingCount;
+  private final int[] statePriorities;
+  private final boolean[] safetyStates;
+
+  // Requests made from other threads, drained at the start of periodic(). Normal requests are
+  // coalesced so only the latest one is applied. Priority requests go in a preallocated ring so
+  // producers never allocate: a producer claims a slot by advancing the tail, periodic() consumes
+  // from the head, and every drained request is applied highest priority first
+  private static final int ASYNC_CAPACITY = 16;
+  private final AtomicReference<E> asyncRequest;
+  private final AtomicReferenceArray<E> asyncRing;
+  private final AtomicLong asyncTail;
+  private volatile long asyncHead;
+  private final E[] asyncBatch;
+  private final EnumMap<E, Command> stateCommands;
   private final Timer transitionTimer;
-  private final Set<E> currentFlags;
-  private final double transitionTimeOut = 2;
+  private final EnumSet<E> currentFlags;
+  // read-only view handed out by getCurrentFlags(), so flags can only change through setFlag
+  private final Set<E> currentFlagsView;
+  // Flag names are cached so that logging the flags every loop does not allocate
+  private String[] currentFlagNames;
+  private boolean flagsChanged;
+
+  private final EnumMap<E, List<Runnable>> stateEnteredListeners;
+  private final EnumMap<E, List<Consumer<Boolean>>> flagChangedListeners;
+  private final TransitionStats<E> stats;
+  // how many loops between publishing the transition statistics
+  private static final int STATS_PUBLISH_LOOPS = 250;
+  private int loopsSinceStatsPublish;
+  private double transitionStartTime;
+  private E transitionStartState;
+  private double stateEnterTime;
   private final E undeterminedState;
   private E currentState;
 
   private boolean enabled;
+  // where prepareSelf() is for the next determination, see PREPARE_NONE. Only the thread that
+  // moves it to PREPARE_RUNNING runs prepareSelf(), and that thread moves it on to PREPARE_DONE
+  private static final int PREPARE_NONE = 0;
+  private static final int PREPARE_RUNNING = 1;
+  private static final int PREPARE_DONE = 2;
+  private final AtomicInteger prepareStatus = new AtomicInteger(PREPARE_NONE);
 
   private final Class<E> enumType;
+  private final E[] states;
+  // constants that are only ever flags, left off the state chooser. Only known from a StateTable
+  private final boolean[] flagOnlyStates;
   private final List<StateMachine<?>> subsystems;
-
-  private final LoggedDashboardChooser<E> stateChooser;
-  private E lastChooserRequest;
+  // children driven directly by this machine's state, see setRegionState
+  private final List<Region<?>> regions;
+  private boolean regionsPending;
+  private E regionsReadyFlag;
+  private final boolean[] regionsReadyStates;
+
+  // null until the dashboard chooser is turned on
+  private SendableChooser<E> stateChooser;
+  // written by the chooser's change listener, consumed once by periodic()
+  private final AtomicReference<E> chooserSelection;
+  // the name of the state picked on the dashboard this loop, or empty if it did not change
+  private String chooserRequest;
+  private final LoggableInputs chooserInputs;
+  private final String chooserKey;
+
+  // null unless profiling is turned on
+  private LoopProfile profile;
+
+  private final String desiredKey;
+  private final String stateKey;
+  private final String transitioningKey;
+  private final String flagsKey;
+  private final String enabledKey;
+
+  private LogMode logMode;
+  private int keyframeLoops;
+  private int loopsSinceKeyframe;
+  private E lastLoggedDesired;
+  private E lastLoggedState;
+  private boolean lastLoggedTransitioning;
+  private String[] lastLoggedFlags;
+  private boolean lastLoggedEnabled;
 
   /**
    * Instantiate a new State Machine
@@ -37,34 +121,133 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
    * @param enumType the class of enums to use for the state
    */
   public StateMachine(String name, E undeterminedState, Class<E> enumType) {
+    this(name, undeterminedState, enumType, null);
+  }
+
+  /**
+   * Instantiate a new State Machine from the table generated for its enum. The omni transitions
+   * and transitions declared on the enum are added with no command, add them again with a command
+   * to replace them
+   *
+   * @param name name of the state machine to send over network tables
+   * @param table the generated table of the machine's states and transitions
+   */
+  public StateMachine(String name, StateTable<E> table) {
+    this(name, table.getUndeterminedState(), table.getEnumType(), table);
+
+    for (int i = 0; i < states.length; i++) {
+      if (table.isOmni(i)) addOmniTransition(states[i]);
+    }
+    for (int i = 0; i < table.getTransitionCount(); i++) {
+      addTransition(states[table.getTransitionStart(i)], states[table.getTransitionEnd(i)]);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private StateMachine(String name, E undeterminedState, Class<E> enumType, StateTable<E> table) {
     this.enumType = enumType;
+    states = table == null ? enumType.getEnumConstants() : table.getStates();
+    flagOnlyStates = new boolean[states.length];
+    if (table != null) {
+      for (int i = 0; i < states.length; i++) flagOnlyStates[i] = table.isFlag(i);
+    }
+
+    pendingRequests = (E[]) Array.newInstance(enumType, MAX_PENDING_REQUESTS);
+    pendingRequestTimes = new double[MAX_PENDING_REQUESTS];
+    pendingCount = 0;
+    statePriorities = new int[states.length];
+    safetyStates = new boolean[states.length];
 
     this.undeterminedState = undeterminedState;
     currentState = undeterminedState;
     currentTransition = null;
     transitionTimer = new Timer();
-    currentFlags = new HashSet<>();
-    stateCommands = new HashMap<>();
+    currentFlags = EnumSet.noneOf(enumType);
+    currentFlagsView = Collections.unmodifiableSet(currentFlags);
+    currentFlagNames = new String[0];
+    flagsChanged = false;
+    stateCommands = new EnumMap<>(enumType);
+    asyncRequest = new AtomicReference<>();
+    asyncRing = new AtomicReferenceArray<>(ASYNC_CAPACITY);
+    asyncTail = new AtomicLong();
+    asyncHead = 0;
+    asyncBatch = (E[]) Array.newInstance(enumType, ASYNC_CAPACITY + 1);
+    stateEnteredListeners = new EnumMap<>(enumType);
+    flagChangedListeners = new EnumMap<>(enumType);
     subsystems = new ArrayList<>();
-    stateChooser = new LoggedDashboardChooser<>(name + "State Chooser");
-    lastChooserRequest = undeterminedState;
-
-    initStateChooser();
+    regions = new ArrayList<>();
+    regionsPending = false;
+    regionsReadyFlag = null;
+    regionsReadyStates = new boolean[states.length];
+    stateChooser = null;
+    chooserSelection = new AtomicReference<>();
+    chooserRequest = "";
+    chooserKey = name + "State Chooser";
+    chooserInputs =
+        new LoggableInputs() {
+          @Override
+          public void toLog(LogTable table) {
+            table.put("request", chooserRequest);
+          }
+
+          @Override
+          public void fromLog(LogTable table) {
+            chooserRequest = table.get("request", "");
+          }
+        };
 
     setName(name);
 
-    transitionGraph = new DirectionalEnumGraph<>(enumType);
+    desiredKey = name + "/desired";
+    stateKey = name + "/state";
+    transitioningKey = name + "/transitioning";
+    flagsKey = name + "/flags";
+    enabledKey = name + "/enabled";
+
+    logMode = LogMode.EVERY_LOOP;
+    keyframeLoops = 1;
+    loopsSinceKeyframe = 0;
+
+    transitionGraph = new DirectionalEnumGraph<>(states);
+    stats = new TransitionStats<>(name, states);
+    loopsSinceStatsPublish = 0;
+    stateEnterTime = Timer.getFPGATimestamp();
     enabled = false;
   }
 
-  private void initStateChooser() {
-    stateChooser.addDefaultOption(undeterminedState.name(), undeterminedState);
+  /**
+   * Put a chooser on the dashboard that requests a transition to whichever state is picked on it.
+   * The chooser is only read when its selection changes, and the picks are recorded as inputs so
+   * they replay
+   */
+  public final void enableStateChooser() {
+    if (stateChooser != null) return;
+
+    stateChooser = new SendableChooser<>();
+    stateChooser.setDefaultOption(undeterminedState.name(), undeterminedState);
 
-    for (E state : enumType.getEnumConstants()) {
-      if (state != undeterminedState) {
+    for (E state : states) {
+      if (state != undeterminedState && !flagOnlyStates[state.ordinal()]) {
         stateChooser.addOption(state.name(), state);
       }
     }
+
+    stateChooser.onChange(chooserSelection::set);
+    SmartDashboard.putData(chooserKey, stateChooser);
+  }
+
+  private E pollStateChooser() {
+    if (!Logger.hasReplaySource()) {
+      E selection = chooserSelection.getAndSet(null);
+      chooserRequest = selection == null ? "" : selection.name();
+    }
+    Logger.processInputs(chooserKey, chooserInputs);
+
+    if (chooserRequest.isEmpty()) return null;
+
+    E request = Enum.valueOf(enumType, chooserRequest);
+    // the default option just means nothing has been picked yet
+    return request == undeterminedState ? null : request;
   }
 
   /**
@@ -83,6 +266,91 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
     subsystems.add(machine);
   }
 
+  /**
+   * Drive a child machine as an orthogonal region of this one: whenever this machine enters the
+   * given state, the child is requested to go to its state in the same loop, without scheduling a
+   * command. States with no region state set leave the child alone
+   *
+   * @param state the state of this machine
+   * @param region the child machine, must already be added with {@link #addChildSubsystem}
+   * @param regionState the state the child should go to
+   */
+  protected final <C extends Enum<C>> void setRegionState(
+      E state, StateMachine<C> region, C regionState) {
+    getRegion(region).setTarget(state.ordinal(), regionState);
+  }
+
+  /**
+   * Set the flag a region raises once it is actually ready in its state (e.g. at speed)
+   *
+   * @param region the child machine
+   * @param flag the child's flag that marks it as ready
+   */
+  protected final <C extends Enum<C>> void setRegionReadyFlag(StateMachine<C> region, C flag) {
+    getRegion(region).setReadyFlag(flag);
+    region.onFlagChanged(flag, (set) -> updateRegionsReady());
+  }
+
+  /**
+   * Keep a flag set while, in one of the given states, every region has reached its state and
+   * raised its ready flag. Replaces polling the children from a state command
+   *
+   * @param flag the flag of this machine to keep updated
+   * @param states the states the flag is tracked in, it stays cleared in every other state
+   */
+  @SafeVarargs
+  protected final void trackRegionsReady(E flag, E... states) {
+    regionsReadyFlag = flag;
+    for (E state : states) {
+      regionsReadyStates[state.ordinal()] = true;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private <C extends Enum<C>> Region<C> getRegion(StateMachine<C> machine) {
+    for (int i = 0; i < regions.size(); i++) {
+      if (regions.get(i).getMachine() == machine) return (Region<C>) regions.get(i);
+    }
+
+    if (!subsystems.contains(machine)) {
+      throw new IllegalArgumentException(
+          machine.getName() + " is not a child of " + getName() + ", it can't be a region");
+    }
+
+    Region<C> region = new Region<>(machine, states.length);
+    regions.add(region);
+    return region;
+  }
+
+  private void enterRegions() {
+    // wait until every region can move so that they all enter the composite state together
+    for (int i = 0; i < regions.size(); i++) {
+      if (!regions.get(i).canEnter()) return;
+    }
+    regionsPending = false;
+
+    int state = currentState.ordinal();
+    for (int i = 0; i < regions.size(); i++) {
+      regions.get(i).enter(state);
+    }
+
+    updateRegionsReady();
+  }
+
+  private void updateRegionsReady() {
+    int state = currentState.ordinal();
+    if (regionsReadyFlag == null || !regionsReadyStates[state] || isTransitioning()) return;
+
+    for (int i = 0; i < regions.size(); i++) {
+      if (!regions.get(i).isReady(state)) {
+        clearFlag(regionsReadyFlag);
+        return;
+      }
+    }
+
+    setFlag(regionsReadyFlag);
+  }
+
   /**
    * @return the current state of the machine
    */
@@ -95,6 +363,7 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
    * the machine is enabled
    */
   public final void enable() {
+    transitionGraph.computeRoutes();
     determineState();
     enabled = true;
 
@@ -130,9 +399,14 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
     enabled = false;
     if (currentTransition != null) currentTransition.cancel();
     currentTransition = null;
-    queuedTransition = null;
+    routeTarget = null;
+    clearPendingRequests(Integer.MAX_VALUE);
+    asyncRequest.set(null);
+    while (pollAsyncRing() != null) {}
     setState(undeterminedState);
     if (getCurrentCommand() != null) getCurrentCommand().cancel();
+    // a preparation nobody determined from is stale by the next enable
+    prepareStatus.compareAndSet(PREPARE_DONE, PREPARE_NONE);
 
     onDisable();
   }
@@ -191,23 +465,38 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
   }
 
   protected final void removeAllTransitionsFromState(E start) {
-    for (E s : enumType.getEnumConstants()) {
+    for (E s : states) {
       transitionGraph.removeEdge(start, s);
     }
   }
 
   /**
-   * Adds a transition from every state to the given state
+   * Set how long a transition can run before a queued transition is allowed to replace it. For an
+   * omni transition this applies to every start state that doesn't have its own transition
+   *
+   * @param start the start state of the transition
+   * @param end the end state of the transition
+   * @param seconds the timeout
+   */
+  protected final void setTransitionTimeout(E start, E end, double seconds) {
+    TransitionBase<E> transition = transitionGraph.getEdge(start, end);
+    if (transition == null) {
+      throw new IllegalArgumentException(
+          getName() + " has no transition from " + start.name() + " to " + end.name());
+    }
+
+    transition.setTimeout(seconds);
+  }
+
+  /**
+   * Adds a transition from every state to the given state. A single transition is shared by every
+   * start state, and any transition added from a specific state afterwards takes priority over it
    *
    * @param state the state to go to
    * @param run transition command to run
    */
   public final void addOmniTransition(E state, Command run) {
-    for (E s : enumType.getEnumConstants()) {
-      if (s != state) {
-        addTransition(s, state, run);
-      }
-    }
+    transitionGraph.setDefaultEdge(new CommandTransition<>(null, state, run));
   }
 
   /**
@@ -221,7 +510,7 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
   }
 
   public final void addOmniTransition(E state) {
-    addOmniTransition(state, () -> {});
+    addOmniTransition(state, new InstantCommand());
   }
 
   @SafeVarargs
@@ -308,32 +597,190 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
   }
 
   /**
-   * Request a transition to a state
+   * Set the priority of requests to a state. While a transition is running, requests wait in a
+   * queue, and a pending request only replaces the route in progress once it finishes if its
+   * priority is at least as high. All states start with a priority of 0
+   *
+   * @param state the state to set the priority of
+   * @param priority the priority, higher goes first
+   */
+  protected final void setStatePriority(E state, int priority) {
+    statePriorities[state.ordinal()] = priority;
+  }
+
+  /**
+   * Mark a state as a safety state (e.g. an E-stop). Requests to a safety state never wait: they
+   * immediately cancel the running transition and state command, and have the highest priority
+   *
+   * @param state the safety state
+   */
+  protected final void setSafetyState(E state) {
+    safetyStates[state.ordinal()] = true;
+    statePriorities[state.ordinal()] = Integer.MAX_VALUE;
+  }
+
+  /**
+   * Request a transition to a state. If there is no transition directly to the state, the machine
+   * will chain through the shortest sequence of transitions that reaches it. If the machine is
+   * already transitioning, the request waits in the pending queue unless it is to a safety state
    *
    * @param state state to transition to
    */
   public final void requestTransition(E state) {
-    TransitionBase<E> transition = transitionGraph.getEdge(currentState, state);
-    // Stop transitions to the same state from happening
-    if (!isTransitioning() && transition != null && state != currentState) {
-      currentTransition = transition;
-      cancelStateCommand();
-      transition.execute();
-      transitionTimer.start();
+    double now = Timer.getFPGATimestamp();
+    int priority = statePriorities[state.ordinal()];
+
+    // Stop transitions to the state we're already in or going to from happening, but still let
+    // the request replace older pending ones
+    if (isTransitioning() ? state == routeTarget : state == currentState) {
+      clearPendingRequests(priority);
+      return;
+    }
 
-      /*updateTransitioning();*/
-    } else if (state != currentState) {
-      queuedTransition = transition;
+    if (!isTransitioning() || safetyStates[state.ordinal()]) {
+      clearPendingRequests(priority);
+      startRequest(state, now, false);
+    } else {
+      enqueueRequest(state, now);
     }
   }
 
-  private void cancelStateCommand() {
-    if (stateCommands.containsKey(getState())) {
-      Command prevCommand = stateCommands.get(getState());
-      if (prevCommand.isScheduled()) prevCommand.cancel();
+  private void enqueueRequest(E state, double requestTime) {
+    clearPendingRequests(statePriorities[state.ordinal()]);
+
+    // every remaining request has a higher priority, so if the queue is full this one is dropped
+    if (pendingCount < MAX_PENDING_REQUESTS) {
+      pendingRequests[pendingCount] = state;
+      pendingRequestTimes[pendingCount] = requestTime;
+      pendingCount++;
+    }
+  }
+
+  // remove every pending request with a priority at or below the given one
+  private void clearPendingRequests(int priority) {
+    while (pendingCount > 0
+        && statePriorities[pendingRequests[pendingCount - 1].ordinal()] <= priority) {
+      pendingCount--;
+      pendingRequests[pendingCount] = null;
+    }
+  }
+
+  // start the route to a state, replacing the running transition. A replaced transition is counted
+  // as a timeout if it ran out of time, or a preemption otherwise, never both
+  private boolean startRequest(E state, double requestTime, boolean timedOut) {
+    TransitionBase<E> transition = transitionGraph.getNextEdge(currentState, state);
+    if (transition == null) return false;
+
+    if (currentTransition != null) {
+      currentTransition.cancel();
+      if (timedOut) {
+        stats.recordTimeout();
+      } else {
+        stats.recordPreemption();
+      }
+    }
+    cancelStateCommand();
+
+    routeTarget = state;
+    routeRequestTime = requestTime;
+    startTransition(transition);
+    return true;
+  }
+
+  private void startTransition(TransitionBase<E> transition) {
+    currentTransition = transition;
+    transition.execute();
+    transitionTimer.reset();
+    transitionTimer.start();
+    transitionStartTime = Timer.getFPGATimestamp();
+    transitionStartState = currentState;
+  }
+
+  /**
+   * Request a transition from any thread (odometry, vision callbacks, Notifiers). The request is
+   * applied at the start of the machine's next periodic(). If several requests are made before
+   * then, only the latest one is applied
+   *
+   * @param state state to transition to
+   */
+  public final void requestTransitionAsync(E state) {
+    asyncRequest.set(state);
+  }
+
+  /**
+   * Request a transition from any thread. Unlike {@link #requestTransitionAsync(Enum)}, priority
+   * requests are never coalesced away. Every request drained in a loop is applied highest state
+   * priority first (see {@link #setStatePriority}), so the most important one starts and the rest
+   * wait in the pending queue behind it. Requests with the same priority are applied in the order
+   * they were made, ahead of a normal request of that priority
+   *
+   * @param state state to transition to
+   * @return false if 16 priority requests are already waiting, in which case this one is dropped
+   */
+  public final boolean requestPriorityTransitionAsync(E state) {
+    while (true) {
+      long tail = asyncTail.get();
+      if (tail - asyncHead >= ASYNC_CAPACITY) return false;
+
+      if (asyncTail.compareAndSet(tail, tail + 1)) {
+        asyncRing.set((int) (tail % ASYNC_CAPACITY), state);
+        return true;
+      }
+    }
+  }
+
+  // take the oldest priority request off the ring, or null if there is none. Only called from the
+  // main thread
+  private E pollAsyncRing() {
+    long head = asyncHead;
+    if (head == asyncTail.get()) return null;
+
+    int slot = (int) (head % ASYNC_CAPACITY);
+    E request = asyncRing.get(slot);
+    // the slot is claimed but not written yet, it will be picked up next loop
+    if (request == null) return null;
+
+    asyncRing.set(slot, null);
+    asyncHead = head + 1;
+    return request;
+  }
+
+  private void drainAsyncRequests() {
+    int count = 0;
+    E request;
+    // producers can keep adding while this drains, anything past a ring's worth waits a loop
+    while (count < ASYNC_CAPACITY && (request = pollAsyncRing()) != null) {
+      count = insertByPriority(request, count);
+    }
+
+    request = asyncRequest.getAndSet(null);
+    if (request != null) count = insertByPriority(request, count);
+
+    for (int i = 0; i < count; i++) {
+      request = asyncBatch[i];
+      asyncBatch[i] = null;
+      requestTransition(request);
     }
   }
 
+  // insert into the first count entries of the batch, after every request with the same or a higher
+  // priority, and return the new count
+  private int insertByPriority(E request, int count) {
+    int priority = statePriorities[request.ordinal()];
+    int i = count;
+    while (i > 0 && statePriorities[asyncBatch[i - 1].ordinal()] < priority) {
+      asyncBatch[i] = asyncBatch[i - 1];
+      i--;
+    }
+    asyncBatch[i] = request;
+    return count + 1;
+  }
+
+  private void cancelStateCommand() {
+    Command prevCommand = stateCommands.get(getState());
+    if (prevCommand != null && prevCommand.isScheduled()) prevCommand.cancel();
+  }
+
   /**
    * Request an instance-based state on the state machine
    *
@@ -402,11 +849,49 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
   }
 
   /**
+   * Wait for the machine to enter a state. The command finishes in the same scheduler cycle that
+   * the state is entered, even if the machine has already left it again by the time the command is
+   * checked
+   *
    * @param state the state to wait for
    * @return the command to run
    */
   public final Command waitForState(E state) {
-    return new WaitUntilCommand(() -> getState() == state);
+    AwaitEventCommand command = new AwaitEventCommand(() -> getState() == state);
+    Runnable listener = command::signal;
+    return command.withSubscription(
+        () -> onStateEntered(state, listener), () -> removeStateEnteredListener(state, listener));
+  }
+
+  /**
+   * Wait for the machine to enter any of the given states
+   *
+   * @param states the states to wait for
+   * @return the command to run
+   */
+  @SafeVarargs
+  public final Command waitForAnyState(E... states) {
+    AwaitEventCommand command =
+        new AwaitEventCommand(
+            () -> {
+              for (E state : states) {
+                if (getState() == state) return true;
+              }
+              return false;
+            });
+
+    Runnable listener = command::signal;
+    return command.withSubscription(
+        () -> {
+          for (E state : states) {
+            onStateEntered(state, listener);
+          }
+        },
+        () -> {
+          for (E state : states) {
+            removeStateEnteredListener(state, listener);
+          }
+        });
   }
 
   /**
@@ -416,29 +901,108 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
    * @return the command to run
    */
   public final Command waitForFlag(E flag) {
-    return new WaitUntilCommand(() -> isFlag(flag));
+    AwaitEventCommand command = new AwaitEventCommand(() -> isFlag(flag));
+    Consumer<Boolean> listener =
+        (set) -> {
+          if (set) command.signal();
+        };
+    return command.withSubscription(
+        () -> onFlagChanged(flag, listener), () -> removeFlagChangedListener(flag, listener));
+  }
+
+  /**
+   * Run a listener every time the machine enters a state. Listeners are run synchronously from
+   * setState(), after the state command has been scheduled
+   *
+   * @param state the state to listen for
+   * @param listener the listener to run
+   */
+  public final void onStateEntered(E state, Runnable listener) {
+    stateEnteredListeners.computeIfAbsent(state, (s) -> new ArrayList<>()).add(listener);
+  }
+
+  /**
+   * Run a listener every time a flag is set or cleared. Listeners are run synchronously from the
+   * method that changed the flag, and are not run if the flag was already in the requested state
+   *
+   * @param flag the flag to listen for
+   * @param listener the listener to run, given whether the flag is now set
+   */
+  public final void onFlagChanged(E flag, Consumer<Boolean> listener) {
+    flagChangedListeners.computeIfAbsent(flag, (f) -> new ArrayList<>()).add(listener);
   }
 
   /**
-   * Get the current flags of a state
+   * Stop running a listener added with {@link #onStateEntered}
+   *
+   * @param state the state it was listening for
+   * @param listener the same listener that was added
+   */
+  public final void removeStateEnteredListener(E state, Runnable listener) {
+    List<Runnable> listeners = stateEnteredListeners.get(state);
+    if (listeners != null) listeners.remove(listener);
+  }
+
+  /**
+   * Stop running a listener added with {@link #onFlagChanged}
+   *
+   * @param flag the flag it was listening for
+   * @param listener the same listener that was added
+   */
+  public final void removeFlagChangedListener(E flag, Consumer<Boolean> listener) {
+    List<Consumer<Boolean>> listeners = flagChangedListeners.get(flag);
+    if (listeners != null) listeners.remove(listener);
+  }
+
+  private void notifyStateEntered(E state) {
+    List<Runnable> listeners = stateEnteredListeners.get(state);
+    if (listeners == null) return;
+
+    for (int i = 0; i < listeners.size(); i++) {
+      listeners.get(i).run();
+    }
+  }
+
+  private void notifyFlagChanged(E flag, boolean set) {
+    List<Consumer<Boolean>> listeners = flagChangedListeners.get(flag);
+    if (listeners == null) return;
+
+    for (int i = 0; i < listeners.size(); i++) {
+      listeners.get(i).accept(set);
+    }
+  }
+
+  /**
+   * Get the current flags of a state. The set is a read-only view that follows the flags as they
+   * change, use {@link #setFlag} and {@link #clearFlag} to change them
    *
    * @return the current flags
    */
   public final Set<E> getCurrentFlags() {
-    return currentFlags;
+    return currentFlagsView;
   }
 
+  /**
+   * Get the names of the current flags. The returned array is cached and only rebuilt when the
+   * flags change, so it must not be modified by the caller
+   *
+   * @return the names of the current flags
+   */
   public final String[] getCurrentFlagsAsArray() {
-    int n = getCurrentFlags().size();
-    String arr[] = new String[n];
+    if (flagsChanged) {
+      String[] arr = new String[currentFlags.size()];
+
+      int i = 0;
+      for (E flag : currentFlags) {
+        arr[i] = flag.toString();
+        i++;
+      }
 
-    int i = 0;
-    for (E flag : getCurrentFlags()) {
-      arr[i] = flag.toString();
-      i++;
+      currentFlagNames = arr;
+      flagsChanged = false;
     }
 
-    return arr;
+    return currentFlagNames;
   }
 
   /**
@@ -448,7 +1012,7 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
    * @return whether the state is currently a flag or not
    */
   public final boolean isFlag(E state) {
-    return getCurrentFlags().contains(state);
+    return currentFlags.contains(state);
   }
 
   /**
@@ -457,7 +1021,10 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
    * @param flag the flag state
    */
   public final void setFlag(E flag) {
-    currentFlags.add(flag);
+    if (currentFlags.add(flag)) {
+      flagsChanged = true;
+      notifyFlagChanged(flag, true);
+    }
   }
 
   /**
@@ -476,7 +1043,10 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
    * @param flag the flag state to clear
    */
   public final void clearFlag(E flag) {
-    currentFlags.remove(flag);
+    if (currentFlags.remove(flag)) {
+      flagsChanged = true;
+      notifyFlagChanged(flag, false);
+    }
   }
 
   public final Command clearFlagCommand(E flag) {
@@ -485,39 +1055,126 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
 
   /** Clear all states that are currently flags */
   public final void clearFlags() {
-    currentFlags.clear();
+    if (currentFlags.isEmpty()) return;
+
+    for (E flag : states) {
+      if (currentFlags.remove(flag)) {
+        flagsChanged = true;
+        notifyFlagChanged(flag, false);
+      }
+    }
   }
 
   @Override
   public final void periodic() {
-    E chooserRequest = stateChooser.get();
+    long start = profileMark();
+    E chooserRequest = stateChooser == null ? null : pollStateChooser();
+    long chooserDone = profileMark();
 
     if (enabled) {
+      drainAsyncRequests();
       updateTransitioning();
+      if (regionsPending) enterRegions();
 
-      if (lastChooserRequest != chooserRequest) {
+      if (chooserRequest != null) {
         requestTransition(chooserRequest);
       }
     }
+    long transitionsDone = profileMark();
 
     recordLogs();
+    long loggingDone = profileMark();
     update();
 
-    lastChooserRequest = chooserRequest;
+    if (profile != null) {
+      profile.record(
+          chooserDone - start,
+          transitionsDone - chooserDone,
+          loggingDone - transitionsDone,
+          System.nanoTime() - loggingDone);
+    }
+  }
+
+  private long profileMark() {
+    return profile == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Start or stop timing each part of periodic()
+   *
+   * @param enabled whether to profile the machine
+   * @param windowLoops the number of loops summarized by each publish of the profile
+   */
+  final void setProfiling(boolean enabled, int windowLoops) {
+    profile = enabled ? new LoopProfile(getName(), windowLoops) : null;
+  }
+
+  /**
+   * @return the machine's profile, or null if it is not being profiled
+   */
+  final LoopProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * Set how the machine records its outputs
+   *
+   * @param mode the logging mode to use
+   * @param keyframeLoops in {@link LogMode#ON_CHANGE}, the number of loops between recording every
+   *     output regardless of whether it changed
+   */
+  public final void setLogMode(LogMode mode, int keyframeLoops) {
+    logMode = mode;
+    this.keyframeLoops = Math.max(1, keyframeLoops);
+    loopsSinceKeyframe = 0;
+  }
+
+  /**
+   * @return the current logging mode of the machine
+   */
+  public final LogMode getLogMode() {
+    return logMode;
   }
 
   private void recordLogs() {
-    Logger.recordOutput(
-        getName() + "/desired",
-        isTransitioning() ? getCurrentTransition().getEndState().name() : getState().name());
+    String[] flags = getCurrentFlagsAsArray();
+    E desired = isTransitioning() ? getCurrentTransition().getEndState() : getState();
+    boolean transitioning = isTransitioning();
 
-    Logger.recordOutput(getName() + "/state", getState().toString());
+    boolean keyframe = logMode == LogMode.EVERY_LOOP || loopsSinceKeyframe == 0;
+    loopsSinceKeyframe = (loopsSinceKeyframe + 1) % keyframeLoops;
 
-    Logger.recordOutput(getName() + "/transitioning", isTransitioning());
-    Logger.recordOutput(getName() + "/flags", getCurrentFlagsAsArray());
-    Logger.recordOutput(getName(), getCurrentFlagsAsArray());
+    if (keyframe || desired != lastLoggedDesired) {
+      Logger.recordOutput(desiredKey, desired.name());
+      lastLoggedDesired = desired;
+    }
+
+    if (keyframe || getState() != lastLoggedState) {
+      Logger.recordOutput(stateKey, getState().toString());
+      lastLoggedState = getState();
+    }
+
+    if (keyframe || transitioning != lastLoggedTransitioning) {
+      Logger.recordOutput(transitioningKey, transitioning);
+      lastLoggedTransitioning = transitioning;
+    }
+
+    // the cached flag array is only replaced when the flags change
+    if (keyframe || flags != lastLoggedFlags) {
+      Logger.recordOutput(flagsKey, flags);
+      Logger.recordOutput(getName(), flags);
+      lastLoggedFlags = flags;
+    }
 
-    Logger.recordOutput(getName() + "/enabled", enabled);
+    if (keyframe || enabled != lastLoggedEnabled) {
+      Logger.recordOutput(enabledKey, enabled);
+      lastLoggedEnabled = enabled;
+    }
+
+    if (++loopsSinceStatsPublish >= STATS_PUBLISH_LOOPS) {
+      loopsSinceStatsPublish = 0;
+      stats.publish();
+    }
 
     logAdditionalOutputs();
   }
@@ -525,35 +1182,94 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
   protected final void setState(E state) {
     cancelStateCommand();
 
+    double now = Timer.getFPGATimestamp();
+    stats.recordDwell(currentState, now - stateEnterTime);
+    stateEnterTime = now;
+
     currentState = state;
     clearFlags();
-    if (stateCommands.containsKey(state)) {
-      stateCommands.get(state).schedule();
-    }
+    Command stateCommand = stateCommands.get(state);
+    if (stateCommand != null) stateCommand.schedule();
+    regionsPending = !regions.isEmpty();
+
+    notifyStateEntered(state);
+  }
+
+  /**
+   * Finish the current transition and start any queued one, outside of periodic(). Used by the
+   * SubsystemManager to settle a chain of parent and child transitions within a single loop
+   *
+   * @return whether the state or the running transition changed
+   */
+  final boolean settle() {
+    if (!enabled) return false;
+
+    E prevState = currentState;
+    TransitionBase<E> prevTransition = currentTransition;
+
+    updateTransitioning();
+    if (regionsPending) enterRegions();
+
+    return currentState != prevState || currentTransition != prevTransition;
   }
 
   private void updateTransitioning() {
     if (isTransitioning() && currentTransition.isFinished()) {
+      stats.recordTransition(
+          transitionStartState,
+          currentTransition.getEndState(),
+          Timer.getFPGATimestamp() - transitionStartTime);
       setState(currentTransition.getEndState());
       currentTransition = null;
       transitionTimer.stop();
       transitionTimer.reset();
+
+      if (currentState == routeTarget) {
+        stats.recordRequestLatency(routeTarget, Timer.getFPGATimestamp() - routeRequestTime);
+        routeTarget = null;
+      }
     }
 
-    if (queuedTransition != null
-        && (!isTransitioning() || transitionTimer.hasElapsed(transitionTimeOut))) {
-      forceChangeTransition();
+    // Start the highest priority pending request once the running transition is done (as long as
+    // it doesn't have a lower priority than the route in progress), or if the transition timed out
+    while (pendingCount > 0) {
+      E next = pendingRequests[0];
+      boolean timedOut =
+          isTransitioning() && transitionTimer.hasElapsed(currentTransition.getTimeout());
+      boolean supersedes =
+          routeTarget == null
+              || statePriorities[next.ordinal()] >= statePriorities[routeTarget.ordinal()];
+
+      if (!(timedOut || (!isTransitioning() && supersedes))) break;
+
+      double requestTime = pendingRequestTimes[0];
+      for (int i = 1; i < pendingCount; i++) {
+        pendingRequests[i - 1] = pendingRequests[i];
+        pendingRequestTimes[i - 1] = pendingRequestTimes[i];
+      }
+      pendingCount--;
+      pendingRequests[pendingCount] = null;
+
+      if (next == (isTransitioning() ? routeTarget : currentState)) continue;
+
+      if (startRequest(next, requestTime, timedOut)) {
+        clearFlags();
+        return;
+      }
     }
-  }
 
-  private void forceChangeTransition() {
+    // Continue along the route to the requested state from wherever the transition ended up
+    if (!isTransitioning() && routeTarget != null) {
+      TransitionBase<E> next = transitionGraph.getNextEdge(currentState, routeTarget);
 
-    if (currentTransition != null) currentTransition.cancel();
-    currentTransition = queuedTransition;
-    currentTransition.execute();
-    queuedTransition = null;
-    transitionTimer.reset();
-    clearFlags();
+      if (next == null) {
+        routeTarget = null;
+      } else {
+        cancelStateCommand();
+        startTransition(next);
+        clearFlags();
+      }
+    }
   }
 
   public final String toString() {
@@ -565,12 +1281,117 @@ public abstract class StateMachine<E extends Enum<E>> extends SubsystemBase {
         + isTransitioning();
   }
 
+  /**
+   * Determine the machine's state, running prepareSelf() first unless it has already been run. If
+   * prepareSelf() is still running on a worker thread the machine is left undetermined, and the
+   * SubsystemManager determines it once the worker is done
+   */
   public final void determineState() {
-    if (!isDetermined()) determineSelf();
+    if (!isDetermined() && finishPreparing()) {
+      determineSelf();
+    }
+  }
+
+  /**
+   * Restore the machine to a state saved before the robot program restarted, instead of
+   * determining it. The flags are restored, and if the machine was on its way to another state it
+   * will continue there once enabled
+   *
+   * @param stateOrdinal the ordinal of the saved state
+   * @param flagBits the saved flags, bit n set for the flag with ordinal n
+   * @param targetOrdinal the ordinal of the state the machine was going to, or -1
+   * @return whether the machine was restored
+   */
+  final boolean restore(int stateOrdinal, long flagBits, int targetOrdinal) {
+    if (isDetermined() || stateOrdinal < 0 || stateOrdinal >= states.length) return false;
+    if (states[stateOrdinal] == undeterminedState) return false;
+    if (!finishPreparing()) return false;
+
+    setState(states[stateOrdinal]);
+    for (int i = 0; i < states.length && i < Long.SIZE; i++) {
+      if ((flagBits & (1L << i)) != 0) setFlag(states[i]);
+    }
+
+    if (targetOrdinal >= 0 && targetOrdinal < states.length && targetOrdinal != stateOrdinal) {
+      routeTarget = states[targetOrdinal];
+      routeRequestTime = Timer.getFPGATimestamp();
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the ordinal of the state the machine is going to, or -1 if it isn't going anywhere
+   */
+  final int getTargetOrdinal() {
+    return routeTarget == null ? -1 : routeTarget.ordinal();
+  }
+
+  /**
+   * @return the current flags, bit n set for the flag with ordinal n (only the first 64 states)
+   */
+  final long getFlagBits() {
+    long bits = 0;
+    for (int i = 0; i < states.length && i < Long.SIZE; i++) {
+      if (currentFlags.contains(states[i])) bits |= 1L << i;
+    }
+    return bits;
+  }
+
+  /**
+   * Claim the blocking part of determination for a worker thread. Until the worker has run {@link
+   * #prepare()}, determineState() leaves the machine undetermined instead of running prepareSelf()
+   * itself, even if the worker hasn't started yet
+   *
+   * @return whether there was preparing to do and it is now claimed
+   */
+  final boolean claimPrepare() {
+    if (isDetermined()) return false;
+    // a finished preparation nobody used is from an earlier mode start (the machine was disabled
+    // while it ran), so it is run again
+    return prepareStatus.compareAndSet(PREPARE_NONE, PREPARE_RUNNING)
+        || prepareStatus.compareAndSet(PREPARE_DONE, PREPARE_RUNNING);
+  }
+
+  /**
+   * Run the blocking part of determination claimed by {@link #claimPrepare()}. Called from a worker
+   * thread by the SubsystemManager
+   */
+  final void prepare() {
+    try {
+      prepareSelf();
+    } finally {
+      prepareStatus.set(PREPARE_DONE);
+    }
+  }
+
+  /**
+   * @return whether prepareSelf() is running on another thread right now
+   */
+  final boolean isPreparing() {
+    return prepareStatus.get() == PREPARE_RUNNING;
+  }
+
+  /**
+   * Run prepareSelf() if nothing has yet, and use up its result
+   *
+   * @return whether the machine is prepared, false if prepareSelf() is claimed by a worker that
+   *     hasn't finished
+   */
+  private boolean finishPreparing() {
+    if (prepareStatus.compareAndSet(PREPARE_NONE, PREPARE_RUNNING)) prepare();
+    return prepareStatus.compareAndSet(PREPARE_DONE, PREPARE_NONE);
   }
 
   protected void update() {}
 
+  /**
+   * User-implemented method for blocking work (e.g. CAN requests) that has to happen before
+   * determineSelf(). It may be run on a worker thread in parallel with other machines, so it must
+   * not touch commands, transitions or the state of the machine
+   */
+  protected void prepareSelf() {}
+
   /**
    * User-implemented method to determine the state of the machine. THIS METHOD IS RESPONSIBLE FOR
    * CALLING the setState() method
@@ -0,0 +1,215 @@
+package frc.robot.SMF;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.littletonrobotics.junction.LogTable;
+import org.littletonrobotics.junction.Logger;
+import org.littletonrobotics.junction.inputs.LoggableInputs;
+
+/**
+ * A compact binary snapshot of every registered state machine, kept in a memory-mapped file so it
+ * survives the robot program restarting. The main thread captures the machines into a staging
+ * buffer every loop, and a background thread copies the latest capture into the file a few times a
+ * second
+ *
+ * <p>Layout: a header of (magic, sequence, timestamp, machine count), then one record per machine
+ * of (name hash, state ordinal, target ordinal, flag bits). The sequence is odd while the file is
+ * being written, so a snapshot torn by a crash mid-write is ignored
+ *
+ * <p>The previous snapshot is an input to the robot program, so it is logged when it is restored
+ * and read back from the log instead of the file in replay
+ */
+class StateSnapshot {
+  private static final int MAGIC = 0x534D4631; // "SMF1"
+  private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES + Integer.BYTES;
+  private static final int SEQUENCE_OFFSET = Integer.BYTES;
+  private static final int RECORD_BYTES = Integer.BYTES + Short.BYTES * 2 + Long.BYTES;
+  private static final String INPUTS_KEY = "SubsystemManager/Snapshot";
+
+  private final List<StateMachine<?>> machines;
+  // all null in replay, which must not touch the real robot's snapshot file
+  private final MappedByteBuffer file;
+  private final ByteBuffer staging;
+  private final ScheduledExecutorService writer;
+  private int sequence;
+
+  // the snapshot that was in the file before this run started writing to it
+  private int[] restoredNameHashes;
+  private int[] restoredStates;
+  private int[] restoredTargets;
+  private long[] restoredFlags;
+  private boolean restoredValid;
+  private final LoggableInputs restoredInputs;
+
+  /**
+   * Open (or create) the snapshot file, read the snapshot left in it by the previous run, and start
+   * writing snapshots of the given machines to it. In replay the file isn't opened at all, the
+   * previous snapshot comes from the log and nothing is written
+   *
+   * @param path the file to keep the snapshot in
+   * @param machines the machines to snapshot, in a fixed order
+   * @param maxAgeSeconds how old the previous snapshot can be and still be restored
+   * @param writesPerSecond how often to write the latest capture to the file
+   */
+  StateSnapshot(
+      Path path, List<StateMachine<?>> machines, double maxAgeSeconds, double writesPerSecond)
+      throws IOException {
+    this.machines = machines;
+    int size = HEADER_BYTES + RECORD_BYTES * machines.size();
+    boolean replay = Logger.hasReplaySource();
+
+    if (replay) {
+      file = null;
+    } else {
+      try (FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        // keep the previous snapshot's size so a change in the number of machines can be detected
+        long mappedSize = Math.max(size, channel.size());
+        file = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+      }
+    }
+
+    restoredNameHashes = new int[machines.size()];
+    restoredStates = new int[machines.size()];
+    restoredTargets = new int[machines.size()];
+    restoredFlags = new long[machines.size()];
+    restoredValid = !replay && readPrevious(maxAgeSeconds);
+    restoredInputs =
+        new LoggableInputs() {
+          @Override
+          public void toLog(LogTable table) {
+            table.put("valid", restoredValid);
+            table.put("nameHashes", restoredNameHashes);
+            table.put("states", restoredStates);
+            table.put("targets", restoredTargets);
+            table.put("flags", restoredFlags);
+          }
+
+          @Override
+          public void fromLog(LogTable table) {
+            restoredValid = table.get("valid", false);
+            restoredNameHashes = table.get("nameHashes", restoredNameHashes);
+            restoredStates = table.get("states", restoredStates);
+            restoredTargets = table.get("targets", restoredTargets);
+            restoredFlags = table.get("flags", restoredFlags);
+          }
+        };
+
+    sequence = 0;
+    if (replay) {
+      staging = null;
+      writer = null;
+      return;
+    }
+
+    staging = ByteBuffer.allocate(size - HEADER_BYTES);
+    writer =
+        Executors.newSingleThreadScheduledExecutor(
+            (runnable) -> {
+              Thread thread = new Thread(runnable, "SMF Snapshot");
+              thread.setDaemon(true);
+              return thread;
+            });
+    long periodMicros = (long) (1e6 / writesPerSecond);
+    writer.scheduleAtFixedRate(this::write, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+  }
+
+  private boolean readPrevious(double maxAgeSeconds) {
+    if (file.getInt(0) != MAGIC) return false;
+
+    int previousSequence = file.getInt(SEQUENCE_OFFSET);
+    long timestamp = file.getLong(Integer.BYTES * 2);
+    int count = file.getInt(Integer.BYTES * 2 + Long.BYTES);
+
+    // torn write, or a different set of machines than this run registered
+    if (previousSequence % 2 != 0 || count != machines.size()) return false;
+
+    double age = (System.currentTimeMillis() - timestamp) / 1000.0;
+    if (age < 0 || age > maxAgeSeconds) return false;
+
+    for (int i = 0; i < count; i++) {
+      int offset = HEADER_BYTES + RECORD_BYTES * i;
+
+      restoredNameHashes[i] = file.getInt(offset);
+      restoredStates[i] = file.getShort(offset + Integer.BYTES);
+      restoredTargets[i] = file.getShort(offset + Integer.BYTES + Short.BYTES);
+      restoredFlags[i] = file.getLong(offset + Integer.BYTES + Short.BYTES * 2);
+    }
+
+    return true;
+  }
+
+  /**
+   * Restore every machine that has a matching record in the previous snapshot. Call once, on the
+   * main thread, since it logs the previous snapshot as an input
+   *
+   * @return the number of machines that were restored
+   */
+  int restore() {
+    Logger.processInputs(INPUTS_KEY, restoredInputs);
+    if (!restoredValid || restoredStates.length != machines.size()) return 0;
+
+    int restored = 0;
+    for (int i = 0; i < machines.size(); i++) {
+      StateMachine<?> machine = machines.get(i);
+
+      if (restoredNameHashes[i] == machine.getName().hashCode()
+          && machine.restore(restoredStates[i], restoredFlags[i], restoredTargets[i])) {
+        restored++;
+      }
+    }
+
+    return restored;
+  }
+
+  /** Capture the current state of every machine. Called from the main thread */
+  void capture() {
+    if (staging == null) return;
+
+    synchronized (staging) {
+      staging.clear();
+
+      for (int i = 0; i < machines.size(); i++) {
+        StateMachine<?> machine = machines.get(i);
+
+        staging.putInt(machine.getName().hashCode());
+        staging.putShort((short) machine.getState().ordinal());
+        staging.putShort((short) machine.getTargetOrdinal());
+        staging.putLong(machine.getFlagBits());
+      }
+    }
+  }
+
+  /** Copy the latest capture into the file. Called from the writer thread */
+  void write() {
+    if (file == null) return;
+
+    try {
+      file.putInt(SEQUENCE_OFFSET, ++sequence);
+
+      synchronized (staging) {
+        file.put(HEADER_BYTES, staging, 0, staging.capacity());
+      }
+      file.putInt(0, MAGIC);
+      file.putLong(Integer.BYTES * 2, System.currentTimeMillis());
+      file.putInt(Integer.BYTES * 2 + Long.BYTES, machines.size());
+
+      file.putInt(SEQUENCE_OFFSET, ++sequence);
+    } catch (RuntimeException e) {
+      DriverStation.reportWarning("SMF snapshot write failed: " + e.getMessage(), false);
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package frc.robot.SMF;
+
+/**
+ * A state machine's states and transitions, fixed at compile time. Implementations are generated
+ * by the SMF annotation processor from an enum annotated with {@code @StateGraph}, see {@link
+ * StateMachine#StateMachine(String, StateTable)}. Every lookup is an array read
+ *
+ * @param <E> the machine's state enum
+ */
+public interface StateTable<E extends Enum<E>> {
+  Class<E> getEnumType();
+
+  E getUndeterminedState();
+
+  /**
+   * @return a new array of every constant, in ordinal order
+   */
+  E[] getStates();
+
+  /**
+   * @return the name of the constant with the given ordinal
+   */
+  String getName(int ordinal);
+
+  /**
+   * @return whether the constant is only ever a flag, never a state
+   */
+  boolean isFlag(int ordinal);
+
+  /**
+   * @return whether the state can be reached from every other state
+   */
+  boolean isOmni(int ordinal);
+
+  /**
+   * @return the number of declared transitions, not counting omni transitions
+   */
+  int getTransitionCount();
+
+  /**
+   * @return the ordinal of the start state of a declared transition
+   */
+  int getTransitionStart(int index);
+
+  /**
+   * @return the ordinal of the end state of a declared transition
+   */
+  int getTransitionEnd(int index);
+}
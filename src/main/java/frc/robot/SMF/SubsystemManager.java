@@ -1,11 +1,53 @@
 package frc.robot.SMF;
 
 import edu.wpi.first.util.sendable.Sendable;
+import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.littletonrobotics.junction.Logger;
 
 public class SubsystemManager {
+  // upper bound on settling passes per loop, in case two machines keep requesting each other
+  private static final int MAX_SETTLE_ITERATIONS = 8;
+
+  private static final int DETERMINATION_THREADS = 4;
+
   private final List<StateMachine<?>> subsystems = new ArrayList<>();
+  private final Set<StateMachine<?>> registered = new HashSet<>();
+
+  private boolean parallelDetermination = false;
+  private double determinationDeadline = 0.1;
+  private ExecutorService determinationExecutor;
+  // machines whose prepareSelf() missed the deadline, determined once it finishes
+  private final List<StateMachine<?>> latePrepares = new ArrayList<>();
+
+  // number of machines named when a loop overruns
+  private static final int PROFILE_OFFENDERS = 3;
+  // seconds of loops in each published summary, enough loops (500 at 50 Hz) for a real p99
+  private static final double PROFILE_WINDOW_SECONDS = 10;
+
+  private boolean profiling = false;
+  private double loopPeriod = 0.02;
+  private int profileWindowLoops = 500;
+  private int loopsSinceProfilePublish = 0;
+  private long lastProfileLoop = 0;
+  private String[] offenderNames = new String[0];
+  private double[] offenderMs = new double[0];
+
+  private StateSnapshot snapshot;
+  private boolean snapshotRestorePending = false;
+  private boolean stateChoosers = false;
+  private LogMode logMode = LogMode.EVERY_LOOP;
+  private int keyframeLoops = 1;
 
   SubsystemManager() {}
 
@@ -31,8 +73,11 @@ public class SubsystemManager {
   }
 
   private void registerSubsystem(StateMachine<?> subsystem, String subtable, boolean sendToNT) {
-    if (!subsystems.contains(subsystem)) {
+    if (registered.add(subsystem)) {
       subsystems.add(subsystem);
+      subsystem.setLogMode(logMode, keyframeLoops);
+      subsystem.setProfiling(profiling, profileWindowLoops);
+      if (stateChoosers) subsystem.enableStateChooser();
       if (sendToNT) sendOnNt(subsystem, subtable);
     }
 
@@ -54,6 +99,34 @@ public class SubsystemManager {
     }
   }
 
+  /**
+   * Set how every registered subsystem (and any registered afterwards) records its outputs
+   *
+   * @param mode the logging mode to use
+   * @param keyframeLoops in {@link LogMode#ON_CHANGE}, the number of loops between recording every
+   *     output regardless of whether it changed
+   */
+  public void setLogMode(LogMode mode, int keyframeLoops) {
+    logMode = mode;
+    this.keyframeLoops = keyframeLoops;
+
+    for (StateMachine<?> sm : subsystems) {
+      sm.setLogMode(mode, keyframeLoops);
+    }
+  }
+
+  /**
+   * Put a state chooser on the dashboard for every registered subsystem (and any registered
+   * afterwards). Meant for debugging, leave it off in competition
+   */
+  public void enableStateChoosers() {
+    stateChoosers = true;
+
+    for (StateMachine<?> sm : subsystems) {
+      sm.enableStateChooser();
+    }
+  }
+
   /** Call in teleopInit(), will notify all subsystems that the teleoperated period has started */
   public void notifyTeleopStart() {
     prepSubsystems();
@@ -118,9 +191,250 @@ public class SubsystemManager {
     }
   }
 
+  /**
+   * Call in robotPeriodic() after the CommandScheduler has run. Repeatedly finishes transitions
+   * across every registered subsystem, parents before children, until no machine changes state, so
+   * that a parent to child to grandchild chain settles in one loop instead of one loop per level
+   *
+   * @return the number of passes that changed a machine's state
+   */
+  public int settleSubsystems() {
+    if (!latePrepares.isEmpty()) determineLatePrepares();
+
+    int iterations = 0;
+    boolean changed = true;
+
+    while (changed && iterations < MAX_SETTLE_ITERATIONS) {
+      changed = false;
+
+      // subsystems are registered parent-first, so this is already dependency order
+      for (int i = 0; i < subsystems.size(); i++) {
+        changed |= subsystems.get(i).settle();
+      }
+
+      if (changed) iterations++;
+    }
+
+    Logger.recordOutput("SubsystemManager/SettleIterations", iterations);
+    Logger.recordOutput("SubsystemManager/SettleCapped", changed);
+    return iterations;
+  }
+
+  /**
+   * Time each part of every registered subsystem's periodic() (and any registered afterwards). A
+   * summary is published every ten seconds, and the subsystems that took the longest are logged
+   * whenever a loop overruns. Call {@link #updateProfiles()} every loop while this is on
+   *
+   * @param enabled whether to profile subsystems
+   * @param loopPeriodSeconds the robot's loop period, see {@code TimedRobot.getPeriod()}
+   */
+  public void setProfiling(boolean enabled, double loopPeriodSeconds) {
+    profiling = enabled;
+    loopPeriod = loopPeriodSeconds;
+    profileWindowLoops =
+        Math.max(1, (int) Math.round(PROFILE_WINDOW_SECONDS / loopPeriodSeconds));
+    loopsSinceProfilePublish = 0;
+    lastProfileLoop = 0;
+
+    int offenders = Math.min(PROFILE_OFFENDERS, subsystems.size());
+    offenderNames = new String[offenders];
+    offenderMs = new double[offenders];
+
+    for (StateMachine<?> sm : subsystems) {
+      sm.setProfiling(enabled, profileWindowLoops);
+    }
+  }
+
+  /**
+   * Call at the end of robotPeriodic() while profiling. Publishes the profile of every subsystem
+   * every ten seconds (one profiling window), and logs the slowest subsystems of this loop if the
+   * time since the last call shows this loop overran
+   */
+  public void updateProfiles() {
+    if (!profiling) return;
+
+    long now = System.nanoTime();
+    boolean overrun = lastProfileLoop != 0 && (now - lastProfileLoop) / 1e9 > loopPeriod * 1.05;
+    lastProfileLoop = now;
+
+    Logger.recordOutput("SubsystemManager/Profile/Overrun", overrun);
+    if (overrun) recordOffenders();
+
+    if (++loopsSinceProfilePublish >= profileWindowLoops) {
+      loopsSinceProfilePublish = 0;
+
+      for (int i = 0; i < subsystems.size(); i++) {
+        LoopProfile profile = subsystems.get(i).getProfile();
+        if (profile != null) profile.publish();
+      }
+    }
+  }
+
+  private void recordOffenders() {
+    // partial selection sort, there are only ever a handful of offenders to pick
+    Arrays.fill(offenderMs, -1);
+
+    for (int i = 0; i < subsystems.size(); i++) {
+      LoopProfile profile = subsystems.get(i).getProfile();
+      if (profile == null) continue;
+
+      double ms = profile.getLastLoopNanos() / 1e6;
+      for (int slot = 0; slot < offenderMs.length; slot++) {
+        if (ms > offenderMs[slot]) {
+          System.arraycopy(offenderMs, slot, offenderMs, slot + 1, offenderMs.length - slot - 1);
+          System.arraycopy(
+              offenderNames, slot, offenderNames, slot + 1, offenderNames.length - slot - 1);
+          offenderMs[slot] = ms;
+          offenderNames[slot] = profile.getName();
+          break;
+        }
+      }
+    }
+
+    Logger.recordOutput("SubsystemManager/Profile/OverrunOffenders", offenderNames);
+    Logger.recordOutput("SubsystemManager/Profile/OverrunOffendersMs", offenderMs);
+  }
+
+  /**
+   * Run the blocking part of every subsystem's determination (their prepareSelf()) concurrently
+   * instead of one after another on the main thread
+   *
+   * @param enabled whether to prepare subsystems in parallel
+   * @param deadlineSeconds how long to wait for each subsystem before moving on without it. A
+   *     subsystem that misses the deadline stays undetermined until its prepareSelf() finishes,
+   *     and is determined by the next {@link #settleSubsystems()} after that
+   */
+  public void setParallelDetermination(boolean enabled, double deadlineSeconds) {
+    parallelDetermination = enabled;
+    determinationDeadline = deadlineSeconds;
+  }
+
+  private void determineLatePrepares() {
+    for (int i = latePrepares.size() - 1; i >= 0; i--) {
+      StateMachine<?> sm = latePrepares.get(i);
+      if (sm.isPreparing()) continue;
+
+      latePrepares.remove(i);
+      if (sm.isEnabled()) sm.determineState();
+    }
+  }
+
+  private void prepareAllSubsystems() {
+    if (determinationExecutor == null) {
+      determinationExecutor =
+          Executors.newFixedThreadPool(
+              DETERMINATION_THREADS,
+              (runnable) -> {
+                Thread thread = new Thread(runnable, "SMF Determination");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+
+    long[] finishTimes = new long[subsystems.size()];
+    List<Future<?>> futures = new ArrayList<>(subsystems.size());
+    long start = System.nanoTime();
+
+    for (int i = 0; i < subsystems.size(); i++) {
+      StateMachine<?> sm = subsystems.get(i);
+      int index = i;
+
+      // claimed here rather than on the worker, so a task that hasn't started by the deadline still
+      // belongs to the worker instead of being run on this thread by determineState()
+      if (!sm.claimPrepare()) {
+        finishTimes[i] = start;
+        futures.add(CompletableFuture.completedFuture(null));
+        continue;
+      }
+
+      futures.add(
+          determinationExecutor.submit(
+              () -> {
+                sm.prepare();
+                finishTimes[index] = System.nanoTime();
+              }));
+    }
+
+    long deadline = start + (long) (determinationDeadline * 1e9);
+
+    for (int i = 0; i < subsystems.size(); i++) {
+      StateMachine<?> sm = subsystems.get(i);
+      String key = "SubsystemManager/Determination/" + sm.getName();
+
+      try {
+        futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        Logger.recordOutput(key + "/prepareMs", (finishTimes[i] - start) / 1e6);
+        Logger.recordOutput(key + "/missedDeadline", false);
+      } catch (TimeoutException e) {
+        // still running on the worker, the machine stays undetermined until it finishes
+        if (!latePrepares.contains(sm)) latePrepares.add(sm);
+        Logger.recordOutput(key + "/prepareMs", determinationDeadline * 1e3);
+        Logger.recordOutput(key + "/missedDeadline", true);
+      } catch (ExecutionException e) {
+        DriverStation.reportError(
+            "SMF " + sm.getName() + " prepareSelf() failed: " + e.getCause(),
+            e.getCause().getStackTrace());
+        Logger.recordOutput(key + "/missedDeadline", false);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        DriverStation.reportWarning("SMF parallel determination interrupted", false);
+        // whatever is still running is picked up like a missed deadline
+        for (int j = i; j < subsystems.size(); j++) {
+          StateMachine<?> late = subsystems.get(j);
+          if (!futures.get(j).isDone() && !latePrepares.contains(late)) latePrepares.add(late);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Start keeping a snapshot of every registered subsystem in a memory-mapped file, and restore
+   * from the snapshot left by the previous run (if it is fresh enough) the first time subsystems
+   * are prepped. Call once, after every subsystem has been registered
+   *
+   * @param path the file to keep the snapshot in
+   * @param maxAgeSeconds how old the previous snapshot can be and still be restored. Has to cover
+   *     the whole restart, which is tens of seconds on a roboRIO
+   * @param writesPerSecond how often to write the snapshot to the file
+   */
+  public void enableSnapshots(Path path, double maxAgeSeconds, double writesPerSecond) {
+    try {
+      snapshot = new StateSnapshot(path, subsystems, maxAgeSeconds, writesPerSecond);
+      snapshotRestorePending = true;
+    } catch (IOException e) {
+      DriverStation.reportWarning("Could not open SMF snapshot file: " + e.getMessage(), false);
+    }
+  }
+
+  /** Call in robotPeriodic(), captures every subsystem for the next snapshot write */
+  public void captureSnapshot() {
+    if (snapshot != null) snapshot.capture();
+  }
+
   /** Enable all subsystems and determine all subsystems */
   public void prepSubsystems() {
-    enableAllSubsystems();
+    long start = System.nanoTime();
+
+    if (parallelDetermination) prepareAllSubsystems();
+    long prepared = System.nanoTime();
+
+    if (snapshotRestorePending) {
+      snapshotRestorePending = false;
+      Logger.recordOutput("SubsystemManager/Snapshot/restored", snapshot.restore());
+    }
+
+    for (StateMachine<?> s : subsystems) {
+      long machineStart = System.nanoTime();
+      s.enable();
+      Logger.recordOutput(
+          "SubsystemManager/Determination/" + s.getName() + "/determineMs",
+          (System.nanoTime() - machineStart) / 1e6);
+    }
     determineAllSubsystems();
+
+    Logger.recordOutput("SubsystemManager/Determination/prepareMs", (prepared - start) / 1e6);
+    Logger.recordOutput(
+        "SubsystemManager/Determination/totalMs", (System.nanoTime() - start) / 1e6);
   }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package frc.robot.SMF;
+
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Fixed-bucket transition latency histograms and state dwell time accumulators for a single state
+ * machine. Everything, including the edge and state names, is preallocated when the machine is
+ * constructed, so recording a sample never allocates. The published arrays only hold the edges and
+ * states that have been recorded, so they are reallocated the first time a new one shows up and
+ * reused after that
+ */
+class TransitionStats<E extends Enum<E>> {
+  // upper bound (seconds) of each latency bucket, the last bucket catches everything above
+  private static final double[] BUCKET_BOUNDS = {
+    0.02, 0.04, 0.06, 0.1, 0.2, 0.5, 1.0, 2.0, Double.POSITIVE_INFINITY
+  };
+
+  private final int stateCount;
+  // index [start * stateCount + end]
+  private final String[] edgeNames;
+  private final String[] stateNames;
+
+  // index [start * stateCount + end][bucket]
+  private final long[][] latencyBuckets;
+  private final long[] latencyCounts;
+  private final double[] latencyTotals;
+  private final double[] latencyMax;
+
+  private final double[] dwellTotals;
+  private final double[] dwellMax;
+  private final long[] dwellCounts;
+
+  private final double[] requestLatencyTotals;
+  private final double[] requestLatencyMax;
+  private final long[] requestLatencyCounts;
+
+  private long timeouts;
+  private long preemptions;
+
+  // what has been recorded at least once, in the order it was first recorded
+  private final int[] usedEdges;
+  private int usedEdgeCount;
+  private final int[] dwelledStates;
+  private int dwelledCount;
+  private final int[] requestedStates;
+  private int requestedCount;
+
+  // reused between publishes, regrown when something new has been recorded
+  private String[] publishedEdges = new String[0];
+  private long[] publishedEdgeCounts = new long[0];
+  private double[] publishedEdgeAvg = new double[0];
+  private double[] publishedEdgeP95 = new double[0];
+  private double[] publishedEdgeMax = new double[0];
+  private String[] publishedDwellStates = new String[0];
+  private double[] publishedDwellAvg = new double[0];
+  private double[] publishedDwellMax = new double[0];
+  private String[] publishedRequestStates = new String[0];
+  private double[] publishedRequestAvg = new double[0];
+  private double[] publishedRequestMax = new double[0];
+
+  private final String edgesKey;
+  private final String edgeCountsKey;
+  private final String edgeAvgKey;
+  private final String edgeP95Key;
+  private final String edgeMaxKey;
+  private final String dwellStatesKey;
+  private final String dwellAvgKey;
+  private final String dwellMaxKey;
+  private final String requestStatesKey;
+  private final String requestAvgKey;
+  private final String requestMaxKey;
+  private final String timeoutsKey;
+  private final String preemptionsKey;
+
+  TransitionStats(String name, E[] states) {
+    stateCount = states.length;
+
+    stateNames = new String[stateCount];
+    edgeNames = new String[stateCount * stateCount];
+    for (int start = 0; start < stateCount; start++) {
+      stateNames[start] = states[start].name();
+      for (int end = 0; end < stateCount; end++) {
+        edgeNames[start * stateCount + end] = states[start].name() + "->" + states[end].name();
+      }
+    }
+
+    usedEdges = new int[stateCount * stateCount];
+    dwelledStates = new int[stateCount];
+    requestedStates = new int[stateCount];
+
+    latencyBuckets = new long[stateCount * stateCount][BUCKET_BOUNDS.length];
+    latencyCounts = new long[stateCount * stateCount];
+    latencyTotals = new double[stateCount * stateCount];
+    latencyMax = new double[stateCount * stateCount];
+
+    dwellTotals = new double[stateCount];
+    dwellMax = new double[stateCount];
+    dwellCounts = new long[stateCount];
+
+    requestLatencyTotals = new double[stateCount];
+    requestLatencyMax = new double[stateCount];
+    requestLatencyCounts = new long[stateCount];
+
+    edgesKey = name + "/stats/transitions";
+    edgeCountsKey = name + "/stats/transitionCounts";
+    edgeAvgKey = name + "/stats/transitionAvg";
+    edgeP95Key = name + "/stats/transitionP95";
+    edgeMaxKey = name + "/stats/transitionMax";
+    dwellStatesKey = name + "/stats/dwellStates";
+    dwellAvgKey = name + "/stats/dwellAvg";
+    dwellMaxKey = name + "/stats/dwellMax";
+    requestStatesKey = name + "/stats/requestStates";
+    requestAvgKey = name + "/stats/requestToEntryAvg";
+    requestMaxKey = name + "/stats/requestToEntryMax";
+    timeoutsKey = name + "/stats/timeouts";
+    preemptionsKey = name + "/stats/preemptions";
+  }
+
+  void recordTransition(E start, E end, double seconds) {
+    int edge = start.ordinal() * stateCount + end.ordinal();
+
+    int bucket = 0;
+    while (seconds > BUCKET_BOUNDS[bucket]) bucket++;
+
+    if (latencyCounts[edge] == 0) usedEdges[usedEdgeCount++] = edge;
+    latencyBuckets[edge][bucket]++;
+    latencyCounts[edge]++;
+    latencyTotals[edge] += seconds;
+    if (seconds > latencyMax[edge]) latencyMax[edge] = seconds;
+  }
+
+  void recordDwell(E state, double seconds) {
+    int i = state.ordinal();
+
+    if (dwellCounts[i] == 0) dwelledStates[dwelledCount++] = i;
+    dwellTotals[i] += seconds;
+    dwellCounts[i]++;
+    if (seconds > dwellMax[i]) dwellMax[i] = seconds;
+  }
+
+  /** Record the time from a state being requested to the machine entering it */
+  void recordRequestLatency(E state, double seconds) {
+    int i = state.ordinal();
+
+    if (requestLatencyCounts[i] == 0) requestedStates[requestedCount++] = i;
+    requestLatencyTotals[i] += seconds;
+    requestLatencyCounts[i]++;
+    if (seconds > requestLatencyMax[i]) requestLatencyMax[i] = seconds;
+  }
+
+  void recordTimeout() {
+    timeouts++;
+  }
+
+  void recordPreemption() {
+    preemptions++;
+  }
+
+  private double percentile(int edge, double fraction) {
+    long target = (long) Math.ceil(latencyCounts[edge] * fraction);
+    long seen = 0;
+
+    for (int bucket = 0; bucket < BUCKET_BOUNDS.length; bucket++) {
+      seen += latencyBuckets[edge][bucket];
+      if (seen >= target) {
+        // the overflow bucket has no upper bound, so report the largest sample instead
+        return Math.min(BUCKET_BOUNDS[bucket], latencyMax[edge]);
+      }
+    }
+
+    return latencyMax[edge];
+  }
+
+  /**
+   * Publish a summary of every edge and state that has been recorded so far. Only allocates when an
+   * edge or state has been recorded for the first time since the last publish
+   */
+  void publish() {
+    if (publishedEdges.length != usedEdgeCount) {
+      publishedEdges = new String[usedEdgeCount];
+      publishedEdgeCounts = new long[usedEdgeCount];
+      publishedEdgeAvg = new double[usedEdgeCount];
+      publishedEdgeP95 = new double[usedEdgeCount];
+      publishedEdgeMax = new double[usedEdgeCount];
+    }
+
+    for (int i = 0; i < usedEdgeCount; i++) {
+      int edge = usedEdges[i];
+
+      publishedEdges[i] = edgeNames[edge];
+      publishedEdgeCounts[i] = latencyCounts[edge];
+      publishedEdgeAvg[i] = latencyTotals[edge] / latencyCounts[edge];
+      publishedEdgeP95[i] = percentile(edge, 0.95);
+      publishedEdgeMax[i] = latencyMax[edge];
+    }
+
+    Logger.recordOutput(edgesKey, publishedEdges);
+    Logger.recordOutput(edgeCountsKey, publishedEdgeCounts);
+    Logger.recordOutput(edgeAvgKey, publishedEdgeAvg);
+    Logger.recordOutput(edgeP95Key, publishedEdgeP95);
+    Logger.recordOutput(edgeMaxKey, publishedEdgeMax);
+
+    if (publishedDwellStates.length != dwelledCount) {
+      publishedDwellStates = new String[dwelledCount];
+      publishedDwellAvg = new double[dwelledCount];
+      publishedDwellMax = new double[dwelledCount];
+    }
+
+    for (int i = 0; i < dwelledCount; i++) {
+      int state = dwelledStates[i];
+
+      publishedDwellStates[i] = stateNames[state];
+      publishedDwellAvg[i] = dwellTotals[state] / dwellCounts[state];
+      publishedDwellMax[i] = dwellMax[state];
+    }
+
+    Logger.recordOutput(dwellStatesKey, publishedDwellStates);
+    Logger.recordOutput(dwellAvgKey, publishedDwellAvg);
+    Logger.recordOutput(dwellMaxKey, publishedDwellMax);
+
+    if (publishedRequestStates.length != requestedCount) {
+      publishedRequestStates = new String[requestedCount];
+      publishedRequestAvg = new double[requestedCount];
+      publishedRequestMax = new double[requestedCount];
+    }
+
+    for (int i = 0; i < requestedCount; i++) {
+      int state = requestedStates[i];
+
+      publishedRequestStates[i] = stateNames[state];
+      publishedRequestAvg[i] = requestLatencyTotals[state] / requestLatencyCounts[state];
+      publishedRequestMax[i] = requestLatencyMax[state];
+    }
+
+    Logger.recordOutput(requestStatesKey, publishedRequestStates);
+    Logger.recordOutput(requestAvgKey, publishedRequestAvg);
+    Logger.recordOutput(requestMaxKey, publishedRequestMax);
+
+    Logger.recordOutput(timeoutsKey, timeouts);
+    Logger.recordOutput(preemptionsKey, preemptions);
+  }
+}
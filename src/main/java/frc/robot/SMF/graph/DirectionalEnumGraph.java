@@ -2,18 +2,41 @@
 package frc.robot.SMF.graph;
 
 import frc.robot.SMF.transitions.TransitionBase;
-import java.util.*;
 
 public class DirectionalEnumGraph<V extends Enum<V>, T extends TransitionBase<? extends Enum<V>>> {
+  // Marks an explicitly removed edge, so that it doesn't fall back to the column default
+  private static final Object REMOVED = new Object();
+
   // Array where the index [1][2] = TransitionBase from state at ordinal 1 to state at ordinal 2
   private final Object[][] adjacencyMap;
-  private final Class<V> enumType;
+  // Array where the index [2] = TransitionBase used from every state to the state at ordinal 2,
+  // unless the adjacency map has an explicit entry for that pair
+  private final Object[] defaultEdges;
+  private final V[] constants;
+
+  // Flat array where the index [1 * c + 2] = the first TransitionBase on the shortest path from the
+  // state at ordinal 1 to the state at ordinal 2, or null if there is no path. The column defaults
+  // are already resolved, so a lookup is a single array read
+  private final Object[] routeTable;
+  private boolean routesDirty;
 
   public DirectionalEnumGraph(Class<V> enumType) {
-    int c = enumType.getEnumConstants().length;
-    this.enumType = enumType;
+    // getEnumConstants() clones the array on every call, so it is only called once
+    this(enumType.getEnumConstants());
+  }
+
+  /**
+   * @param constants every constant of the enum, in ordinal order, e.g. from a generated state
+   *     table. Not copied, so it must not be changed afterwards
+   */
+  public DirectionalEnumGraph(V[] constants) {
+    this.constants = constants;
+    int c = constants.length;
 
     adjacencyMap = new Object[c][c];
+    defaultEdges = new Object[c];
+    routeTable = new Object[c * c];
+    routesDirty = true;
   }
 
   /**
@@ -33,11 +56,11 @@ public class DirectionalEnumGraph<V extends Enum<V>, T extends TransitionBase<?
   }
 
   private T getAsEdge(int x, int y) {
-    return (T) adjacencyMap[x][y];
-  }
+    Object edge = adjacencyMap[x][y];
+    if (edge == null && x != y) edge = defaultEdges[y];
+    if (edge == REMOVED) return null;
 
-  private V fromOrdinal(int ordinal) {
-    return enumType.getEnumConstants()[ordinal];
+    return (T) edge;
   }
 
   /**
@@ -49,49 +72,104 @@ public class DirectionalEnumGraph<V extends Enum<V>, T extends TransitionBase<?
   public void setEdge(T transition) {
     adjacencyMap[transition.getStartState().ordinal()][transition.getEndState().ordinal()] =
         transition;
+    routesDirty = true;
   }
 
   public void removeEdge(V start, V end) {
-    adjacencyMap[start.ordinal()][end.ordinal()] = null;
+    adjacencyMap[start.ordinal()][end.ordinal()] = REMOVED;
+    routesDirty = true;
   }
 
   /**
-   * Returns the edge of the graph
+   * Set a single transition to be used from every vertex to the transition's end vertex. Any edge
+   * to that vertex that was set before this call is replaced, and edges set after it take priority
+   * over the default
    *
-   * @param start starting vertex of the edge
-   * @param end ending vertex of the edge
-   * @return the edge, if one is found. Otherwise, the method will return null
+   * @param transition The transition to use as the default edge into its end state
    */
-  public T getEdge(V start, V end) {
-    return getAsEdge(start.ordinal(), end.ordinal());
+  public void setDefaultEdge(T transition) {
+    int end = transition.getEndState().ordinal();
+
+    defaultEdges[end] = transition;
+    for (Object[] row : adjacencyMap) {
+      row[end] = null;
+    }
+    routesDirty = true;
   }
 
   /**
-   * Returns the edges of the graph either going to, from, or both to and from a vertex of the graph
-   *
-   * @param vertex the vertex to search
-   * @param t the type of resultant edges to return
-   * @return the edges of the graph that match the conditions
+   * Compute the all-pairs shortest path routing table for the current edges of the graph. This is
+   * done automatically the first time a route is looked up after the graph changes, but should be
+   * called once registration is finished so the work doesn't happen in the robot loop
    */
-  public List<T> getEdges(V vertex, EdgeType t) {
-    List<T> outgoing = new ArrayList<>();
-    List<T> incoming = new ArrayList<>();
-
-    for (int i = 0; i < adjacencyMap.length; i++) {
-      T in = getAsEdge(i, vertex.ordinal());
-      T out = getAsEdge(vertex.ordinal(), i);
-      if (out != null) outgoing.add(out);
-      if (in != null) incoming.add(in);
+  public void computeRoutes() {
+    int c = constants.length;
+    int[] dist = new int[c * c];
+    // ordinal of the first state to go to on the shortest path from i to j, or -1 if there is none
+    int[] nextHop = new int[c * c];
+
+    for (int i = 0; i < c; i++) {
+      for (int j = 0; j < c; j++) {
+        if (i != j && getAsEdge(i, j) != null) {
+          dist[i * c + j] = 1;
+          nextHop[i * c + j] = j;
+        } else {
+          dist[i * c + j] = i == j ? 0 : Integer.MAX_VALUE;
+          nextHop[i * c + j] = -1;
+        }
+      }
     }
 
-    switch (t) {
-      case Incoming:
-        return incoming;
-      case Outgoing:
-        return outgoing;
-      default: // Return both
-        outgoing.addAll(incoming);
-        return outgoing;
+    // Floyd-Warshall, every edge has the same weight so the shortest route is the fewest hops
+    for (int k = 0; k < c; k++) {
+      for (int i = 0; i < c; i++) {
+        int ik = dist[i * c + k];
+        if (ik == Integer.MAX_VALUE) continue;
+
+        for (int j = 0; j < c; j++) {
+          int kj = dist[k * c + j];
+          if (kj == Integer.MAX_VALUE) continue;
+
+          if (ik + kj < dist[i * c + j]) {
+            dist[i * c + j] = ik + kj;
+            nextHop[i * c + j] = nextHop[i * c + k];
+          }
+        }
+      }
     }
+
+    for (int i = 0; i < c; i++) {
+      for (int j = 0; j < c; j++) {
+        int hop = nextHop[i * c + j];
+        routeTable[i * c + j] = hop == -1 ? null : getAsEdge(i, hop);
+      }
+    }
+
+    routesDirty = false;
+  }
+
+  /**
+   * Returns the first edge on the shortest path between two vertices. If there is a direct edge
+   * between them, that edge is returned
+   *
+   * @param start starting vertex of the route
+   * @param end ending vertex of the route
+   * @return the first edge of the route, if one is found. Otherwise, the method will return null
+   */
+  public T getNextEdge(V start, V end) {
+    if (routesDirty) computeRoutes();
+
+    return (T) routeTable[start.ordinal() * constants.length + end.ordinal()];
+  }
+
+  /**
+   * Returns the edge of the graph
+   *
+   * @param start starting vertex of the edge
+   * @param end ending vertex of the edge
+   * @return the edge, if one is found. Otherwise, the method will return null
+   */
+  public T getEdge(V start, V end) {
+    return getAsEdge(start.ordinal(), end.ordinal());
   }
 }
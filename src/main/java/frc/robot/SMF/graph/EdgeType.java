@@ -1,7 +0,0 @@
-package frc.robot.SMF.graph;
-
-public enum EdgeType {
-  Incoming,
-  Outgoing,
-  All
-}
\ No newline at end of file
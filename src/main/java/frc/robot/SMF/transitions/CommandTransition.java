@@ -14,7 +14,7 @@ public class CommandTransition<E extends Enum<E>> extends TransitionBase<E> {
   @Override
   public String toString() {
     return "Start state: "
-        + this.startState.name()
+        + (this.startState == null ? "any" : this.startState.name())
         + ", End state: "
         + this.endState.name()
         + ", Command: "
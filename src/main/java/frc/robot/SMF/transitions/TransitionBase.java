@@ -1,8 +1,12 @@
 package frc.robot.SMF.transitions;
 
 public abstract class TransitionBase<E extends Enum<E>> {
+  /** The time (seconds) a transition can run before a queued transition is allowed to replace it */
+  public static final double DEFAULT_TIMEOUT = 2;
+
   protected final E startState;
   protected final E endState;
+  private double timeout = DEFAULT_TIMEOUT;
 
   public TransitionBase(E startState, E endState) {
     this.startState = startState;
@@ -41,6 +45,9 @@ public abstract class TransitionBase<E extends Enum<E>> {
 
   public abstract boolean hasStarted();
 
+  /**
+   * @return the start state of the transition, or null if the transition can start from any state
+   */
   public E getStartState() {
     return startState;
   }
@@ -48,4 +55,18 @@ public abstract class TransitionBase<E extends Enum<E>> {
   public E getEndState() {
     return endState;
   }
+
+  /**
+   * @return the time (seconds) the transition can run before a queued transition replaces it
+   */
+  public double getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * @param timeout the time (seconds) the transition can run before a queued transition replaces it
+   */
+  public void setTimeout(double timeout) {
+    this.timeout = timeout;
+  }
 }
\ No newline at end of file
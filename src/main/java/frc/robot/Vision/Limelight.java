@@ -1,23 +1,64 @@
 package frc.robot.Vision;
 
+import java.util.EnumSet;
+import java.util.function.Consumer;
+
+import edu.wpi.first.networktables.DoubleSubscriber;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEvent;
+import edu.wpi.first.networktables.NetworkTableInstance;
 import frc.robot.LimelightHelpers;
 
 public class Limelight {
-    private String name;
+    private final DoubleSubscriber tx, ty, ta, tl, cl, hb;
 
     public Limelight(String name) {
-        this.name = "limelight";
+        /* Subscribed once, so reading a value is a cached lookup instead of a string keyed one every time */
+        NetworkTable table = LimelightHelpers.getLimelightNTTable(name);
+        tx = table.getDoubleTopic("tx").subscribe(0.0);
+        ty = table.getDoubleTopic("ty").subscribe(0.0);
+        ta = table.getDoubleTopic("ta").subscribe(0.0);
+        tl = table.getDoubleTopic("tl").subscribe(0.0);
+        cl = table.getDoubleTopic("cl").subscribe(0.0);
+        hb = table.getDoubleTopic("hb").subscribe(0.0);
     }
 
     public Double getTX() {
-        return LimelightHelpers.getTX(name);
+        return tx.get();
     }
 
     public Double getTY() {
-        return LimelightHelpers.getTY(name);
+        return ty.get();
     }
 
     public Double getTA() {
-        return LimelightHelpers.getTA(name);
+        return ta.get();
+    }
+
+    /**
+     * A single camera frame
+     *
+     * @param tx horizontal offset to the target, in degrees, positive to the right
+     * @param ta target area, 0 if there is no target
+     * @param captureTimestamp when the frame was captured, in seconds in the FPGA timebase
+     */
+    public record Frame(double tx, double ta, double captureTimestamp) {}
+
+    /**
+     * Call a function for every frame the limelight processes. The heartbeat goes up once per frame, so it is what
+     * gets listened to. The listener runs on the NetworkTables listener thread, not the main loop
+     *
+     * @param listener the function to call with each frame
+     */
+    public void addFrameListener(Consumer<Frame> listener) {
+        NetworkTableInstance.getDefault().addListener(
+            hb,
+            EnumSet.of(NetworkTableEvent.Kind.kValueAll),
+            (event) -> {
+                /* NT timestamps are microseconds in the same timebase as the FPGA; back out the pipeline and capture latency */
+                double received = event.valueData.value.getTime() / 1e6;
+                double latency = (tl.get() + cl.get()) / 1000.0;
+                listener.accept(new Frame(tx.get(), ta.get(), received - latency));
+            });
     }
 }
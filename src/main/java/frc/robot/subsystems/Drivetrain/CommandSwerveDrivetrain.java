@@ -1,27 +1,39 @@
 package frc.robot.subsystems.Drivetrain;
 
+import java.util.Optional;
 import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
 import java.util.function.Supplier;
 
+import com.ctre.phoenix6.Utils;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveDrivetrainConstants;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveModule.DriveRequestType;
 import com.pathplanner.lib.auto.AutoBuilder;
 import com.pathplanner.lib.util.HolonomicPathFollowerConfig;
+import com.pathplanner.lib.util.PIDConstants;
+import com.pathplanner.lib.util.PathPlannerLogging;
 import com.pathplanner.lib.util.ReplanningConfig;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveModuleConstants;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest;
 
-import edu.wpi.first.math.controller.PIDController;
 import edu.wpi.first.math.geometry.Pose2d;
-import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
-import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.util.Units;
+import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.InstantCommand;
 import edu.wpi.first.wpilibj2.command.RunCommand;
+import frc.robot.Constants;
 import frc.robot.Constants.AutoConstants;
+import frc.robot.Constants.PhysicalConstants;
 import frc.robot.SMF.StateMachine;
+import frc.robot.SMF.annotations.Omni;
+import frc.robot.SMF.annotations.StateGraph;
 import frc.robot.Vision.Limelight;
+import frc.robot.util.AllianceManager;
+
+import static frc.robot.Constants.Drivetrain.*;
 
 /**
  * Class that extends the Phoenix SwerveDrivetrain class and implements
@@ -30,72 +42,138 @@ import frc.robot.Vision.Limelight;
 public class CommandSwerveDrivetrain extends StateMachine<CommandSwerveDrivetrain.State>{
     public final SwerveDrive swerveDrive;
     private final Limelight limelight = new Limelight("limelight"); 
-    private final PIDController intakePID = new PIDController(0.01, 0.0, 0.0);
-    private final PIDController anglePID = new PIDController(0.001, 0.0, 0.0);
     private double maxSpeed = 0.0, maxAngularRate = 0.0;
-    private Supplier<Double> xSupplier = null, ySupplier = null, turnSupplier = null;
+    /* Publish the odometry health once a second */
+    private static final int HEALTH_PUBLISH_LOOPS = 50;
+    private int loopsSinceHealthPublish = 0;
+    private DoubleSupplier xSupplier = null, ySupplier = null, turnSupplier = null;
+    /* Every request below goes through this, so acceleration is limited no matter which one is driving */
+    private SwerveSetpointGenerator setpointGenerator;
+    /* Built once and updated in place, so driving every loop doesn't allocate or schedule anything */
+    private LimitedDrive fieldCentricDrive, robotCentricDrive;
+    /* Heading lock for the aim states, the heading loop itself runs in the odometry thread */
+    private FieldCentricFacingPoint aimDrive;
+    /* Note tracking for AUTO_INTAKE, retargeted by the limelight's frame listener and driven in the odometry thread */
+    private RobotCentricFacingAngle intakeDrive;
+    private final double[] intakeFrameSample = new double[6];
+    private DriveState intakeFrameState;
+    /* PathPlanner's target and feedforward, with the holonomic controller run against them in the odometry thread */
+    private FollowPathDrive pathDrive;
+    private Rotation2d pathHeading = new Rotation2d();
     private final SwerveModuleConstants[] modules;
     private final BooleanSupplier mirrorPath;
+    /* Main thread copy of the drive state, and the speeds handed to PathPlanner, reused every call */
+    private final DriveState driveState;
+    private final ChassisSpeeds robotSpeeds = new ChassisSpeeds();
 
     public CommandSwerveDrivetrain(SwerveDrivetrainConstants driveTrainConstants, double OdometryUpdateFrequency, double maxSpeed, double maxAngularRate, BooleanSupplier mirrorPath, SwerveModuleConstants... modules) {
-        super("CommandSwerveDrive", State.UNDETERMINED, State.class);
+        super("CommandSwerveDrive", CommandSwerveDrivetrainStateTable.INSTANCE);
         swerveDrive = new SwerveDrive(driveTrainConstants, OdometryUpdateFrequency, modules);
         this.modules = modules;
+        driveState = new DriveState(modules.length);
         this.mirrorPath = mirrorPath;
         this.maxSpeed = maxSpeed;
         this.maxAngularRate = maxAngularRate;
-        registerStateTransitions();
+        createDriveRequests();
         registerStateCommands();
         configurePathPlanner();
     }
     public CommandSwerveDrivetrain(SwerveDrivetrainConstants driveTrainConstants, double maxSpeed, double maxAngularRate, BooleanSupplier mirrorPath, SwerveModuleConstants... modules) {
-        super("RobotContainer", State.UNDETERMINED, State.class);
+        super("RobotContainer", CommandSwerveDrivetrainStateTable.INSTANCE);
         swerveDrive = new SwerveDrive(driveTrainConstants, modules);
         this.modules = modules;
+        driveState = new DriveState(modules.length);
         this.mirrorPath = mirrorPath;
         this.maxSpeed = maxSpeed;
         this.maxAngularRate = maxAngularRate;
-        registerStateTransitions();
+        createDriveRequests();
         registerStateCommands();
         configurePathPlanner();
     }
 
+    private void createDriveRequests() {
+        final SwerveModuleConstants module = modules[0];
+        final double wheelRadius = Units.inchesToMeters(module.WheelRadius);
+
+        /* Force each wheel can put down before it slips, taken from the slip current in the Tuner constants */
+        final double slipForce = DRIVE_MOTOR_KT * module.SlipCurrent * module.DriveMotorGearRatio / wheelRadius;
+        final double maxAcceleration = Math.min(WHEEL_COF * 9.81, modules.length * slipForce / ROBOT_MASS_KG);
+        final double maxSteerRate = STEER_MOTOR_FREE_SPEED / module.SteerMotorGearRatio;
+        setpointGenerator = new SwerveSetpointGenerator(maxAcceleration, maxSteerRate);
+
+        fieldCentricDrive = new LimitedDrive(setpointGenerator)
+            .withFieldCentric(true)
+            .withDriveRequestType(DriveRequestType.OpenLoopVoltage); // field-centric driving in open loop
+        robotCentricDrive = new LimitedDrive(setpointGenerator)
+            .withFieldCentric(false)
+            .withDriveRequestType(DriveRequestType.OpenLoopVoltage);
+        aimDrive = new FieldCentricFacingPoint(setpointGenerator, swerveDrive::getFieldRelativeOffset)
+            .withDriveRequestType(DriveRequestType.OpenLoopVoltage);
+        aimDrive.HeadingController.setPID(HEADING_PID.kP, HEADING_PID.kI, HEADING_PID.kD);
+        /* The intake is on the back, so note tracking drives backwards */
+        intakeDrive = new RobotCentricFacingAngle(setpointGenerator, swerveDrive::getFieldRelativeOffset)
+            .withVelocityX(-AUTO_INTAKE_SPEED)
+            .withDriveRequestType(DriveRequestType.OpenLoopVoltage);
+        intakeDrive.HeadingController.setPID(HEADING_PID.kP, HEADING_PID.kI, HEADING_PID.kD);
+        intakeFrameState = new DriveState(modules.length);
+        limelight.addFrameListener(this::trackNote);
+        pathDrive = new FollowPathDrive(setpointGenerator, swerveDrive::getFieldRelativeOffset)
+            .withDriveRequestType(DriveRequestType.Velocity); // paths are planned in real units, so track them closed loop
+        pathDrive.XController.setPID(AutoConstants.TRANSLATION_PID.kP, AutoConstants.TRANSLATION_PID.kI, AutoConstants.TRANSLATION_PID.kD);
+        pathDrive.YController.setPID(AutoConstants.TRANSLATION_PID.kP, AutoConstants.TRANSLATION_PID.kI, AutoConstants.TRANSLATION_PID.kD);
+        pathDrive.HeadingController.setPID(AutoConstants.ANGLE_PID.kP, AutoConstants.ANGLE_PID.kI, AutoConstants.ANGLE_PID.kD);
+    }
+
     public Command applyRequest(Supplier<SwerveRequest> requestSupplier) {
         return run(swerveDrive.getRequestRunnable(requestSupplier));
     }
 
-    private void drive(Double maxSpeed, Double maxAngularRate, Double xValue, Double yValue, Double turnValue, Boolean fieldOriented) {
+    private void drive(double maxSpeed, double maxAngularRate, double xValue, double yValue, double turnValue, boolean fieldOriented) {
+        // Applied straight from whichever long-lived state command (or path following command) is running
         if (fieldOriented) {
-            final SwerveRequest.FieldCentric drive = new SwerveRequest.FieldCentric()
+            swerveDrive.setControl(fieldCentricDrive
                 .withDeadband(maxSpeed * 0.1).withRotationalDeadband(maxAngularRate * 0.1) // Add a 10% deadband
-                .withDriveRequestType(DriveRequestType.OpenLoopVoltage); // field-centric driving in open loop
-            applyRequest(()->drive.withVelocityX(xValue * maxSpeed).withVelocityY(yValue * maxSpeed).withRotationalRate(turnValue * maxAngularRate)).schedule();
+                .withVelocityX(xValue * maxSpeed).withVelocityY(yValue * maxSpeed).withRotationalRate(turnValue * maxAngularRate));
         }
 
         else {
-            final SwerveRequest.RobotCentric drive = new SwerveRequest.RobotCentric()
+            swerveDrive.setControl(robotCentricDrive
                 .withDeadband(maxSpeed * 0.1).withRotationalDeadband(maxAngularRate * 0.1) // Add a 10% deadband
-                .withDriveRequestType(DriveRequestType.OpenLoopVoltage); // field-centric driving in open loop
-            applyRequest(()->drive.withVelocityX(xValue * maxSpeed).withVelocityY(yValue * maxSpeed).withRotationalRate(turnValue * maxAngularRate)).schedule();
+                .withVelocityX(xValue * maxSpeed).withVelocityY(yValue * maxSpeed).withRotationalRate(turnValue * maxAngularRate));
         }
-        
     }
 
+    /* PathPlanner's output is already in meters and radians per second, so it's applied as is, no scaling or deadband */
     private void driveChassisSpeeds(ChassisSpeeds speeds) {
-        drive(maxSpeed, maxAngularRate, speeds.vxMetersPerSecond, speeds.vyMetersPerSecond, speeds.omegaRadiansPerSecond, false);
+        pathDrive.setFeedforward(speeds, pathHeading);
+        swerveDrive.setControl(pathDrive);
+    }
+
+    /* The pose PathPlanner samples each loop, remembering the heading it turns its output robot relative with */
+    private Pose2d getPathFollowingPose() {
+        Pose2d pose = getPose();
+        pathHeading = pose.getRotation();
+        return pose;
     }
 
     private ChassisSpeeds getChassisSpeeds() {
-        SwerveDriveKinematics kinematics = new SwerveDriveKinematics(new Translation2d[] {
-            new Translation2d(modules[0].LocationX, modules[0].LocationY),
-            new Translation2d(modules[1].LocationX, modules[1].LocationY),
-            new Translation2d(modules[2].LocationX, modules[2].LocationY),
-            new Translation2d(modules[3].LocationX, modules[3].LocationY)
-        });
-        return kinematics.toChassisSpeeds(swerveDrive.getState().ModuleStates);
+        swerveDrive.readDriveState(driveState);
+        robotSpeeds.vxMetersPerSecond = driveState.robotVx;
+        robotSpeeds.vyMetersPerSecond = driveState.robotVy;
+        robotSpeeds.omegaRadiansPerSecond = driveState.omega;
+        return robotSpeeds;
+    }
+
+    /**
+     * Copy the drivetrain state from the latest odometry update, see {@link SwerveDrive#readDriveState}
+     *
+     * @param out the state to copy into
+     */
+    public void readDriveState(DriveState out) {
+        swerveDrive.readDriveState(out);
     }
 
-    public void configureBindings(Supplier<Double> xSupplier, Supplier<Double> ySupplier, Supplier<Double> turnSupplier) {
+    public void configureBindings(DoubleSupplier xSupplier, DoubleSupplier ySupplier, DoubleSupplier turnSupplier) {
         this.xSupplier = xSupplier;
         this.ySupplier = ySupplier;
         this.turnSupplier = turnSupplier;
@@ -109,46 +187,52 @@ public class CommandSwerveDrivetrain extends StateMachine<CommandSwerveDrivetrai
     @Override
     protected void update() {
         swerveDrive.periodic();
-    }
 
-    private void registerStateTransitions() {
-        addOmniTransition(State.AUTO_INTAKE);
-        addOmniTransition(State.FOLLOWING_AUTONOMOUS_COMMAND);
-        addOmniTransition(State.IDLE);
-        addOmniTransition(State.TRAVERSING);
-        addOmniTransition(State.AMP);
-        addOmniTransition(State.SOURCE);
-        addOmniTransition(State.SPEAKER_AA);
+        swerveDrive.getOdometryHealth().setPhase(
+            DriverStation.isDisabled() ? OdometryHealth.Phase.DISABLED
+                : DriverStation.isAutonomous() ? OdometryHealth.Phase.AUTONOMOUS
+                : DriverStation.isTest() ? OdometryHealth.Phase.TEST
+                : OdometryHealth.Phase.TELEOP);
+        if (++loopsSinceHealthPublish >= HEALTH_PUBLISH_LOOPS) {
+            loopsSinceHealthPublish = 0;
+            swerveDrive.getOdometryHealth().publish();
+        }
     }
 
-
     private void registerStateCommands() {
         registerStateCommand(State.IDLE, new InstantCommand(() -> {
             drive(0.0, 0.0, 0.0, 0.0, 0.0, false);
         }));
 
         registerStateCommand(State.TRAVERSING, new RunCommand(() -> {
-            drive(maxSpeed, maxAngularRate, xSupplier.get(), ySupplier.get(), turnSupplier.get(), true);
+            drive(maxSpeed, maxAngularRate, xSupplier.getAsDouble(), ySupplier.getAsDouble(), turnSupplier.getAsDouble(), true);
         }));
 
         registerStateCommand(State.AUTO_INTAKE, new RunCommand(() -> {
-            autoIntakeDrive();
+            swerveDrive.setControl(intakeDrive);
         }).repeatedly());
 
+        /* Mirrored once here instead of every loop */
+        final Pose2d redAmp = Constants.mirror(PhysicalConstants.BLUE_AMP);
+        final Pose2d redSource = Constants.mirror(PhysicalConstants.BLUE_SOURCE);
+        final Pose2d redSpeaker = Constants.mirror(PhysicalConstants.BLUE_SPEAKER);
+        /* Same corners the shooter measures its lob distance to */
+        final Pose2d redLobCorner = Constants.mirror(PhysicalConstants.BLUE_LOB_CORNER);
+
         registerStateCommand(State.AMP, new RunCommand(() -> {
-            pointTowardsAngle(0.0);
+            aimAt(PhysicalConstants.BLUE_AMP, redAmp);
         }).repeatedly());
 
         registerStateCommand(State.SOURCE, new RunCommand(() -> {
-            pointTowardsAngle(0.0);
+            aimAt(PhysicalConstants.BLUE_SOURCE, redSource);
         }).repeatedly());
 
         registerStateCommand(State.SPEAKER_AA, new RunCommand(() -> {
-            pointTowardsAngle(0.0);
+            aimAt(PhysicalConstants.BLUE_SPEAKER, redSpeaker);
         }).repeatedly());
 
         registerStateCommand(State.LOB_AA, new RunCommand(() -> {
-            pointTowardsAngle(0.0);
+            aimAt(PhysicalConstants.BLUE_CORNER, redLobCorner);
         }));
     }
 
@@ -158,15 +242,20 @@ public class CommandSwerveDrivetrain extends StateMachine<CommandSwerveDrivetrai
 
     private void configurePathPlanner() {
         final Double driveBaseRadius = Math.hypot(modules[0].LocationX, modules[0].LocationY);
-        
+        /* No feedback in PathPlanner's controller, so its output is just the path's feedforward; pathDrive does the feedback */
+        final PIDConstants feedforwardOnly = new PIDConstants(0.0, 0.0, 0.0);
+
+        /* PathPlanner logs the target right before handing over its output, every loop it follows a path */
+        PathPlannerLogging.setLogTargetPoseCallback((pose) -> pathDrive.setTargetPose(pose, Utils.getCurrentTimeSeconds()));
+
         AutoBuilder.configureHolonomic(
-            this::getPose,
+            this::getPathFollowingPose,
             swerveDrive::seedFieldRelative,
             this::getChassisSpeeds,
             this::driveChassisSpeeds,
             new HolonomicPathFollowerConfig(
-                AutoConstants.TRANSLATION_PID, 
-                AutoConstants.ANGLE_PID, 
+                feedforwardOnly, 
+                feedforwardOnly, 
                 maxSpeed, 
                 driveBaseRadius, 
                 new ReplanningConfig()),
@@ -175,46 +264,63 @@ public class CommandSwerveDrivetrain extends StateMachine<CommandSwerveDrivetrai
         );
     }
 
-    private void autoIntakeDrive() {
-        var tx = limelight.getTX();
-        var ta = limelight.getTA();
-
-        Double drive = 0.0;
-        Double turn = 0.0;
-
-        if (Math.abs(tx)<8||ta<5) {
-            drive = -0.4;
+    /*
+     * Runs on the NetworkTables listener thread for every limelight frame. tx is relative to where the robot was
+     * facing when the frame was captured, so turn it into a field heading with the heading from back then; it
+     * stays correct however far the robot has turned since. The capture time is FPGA time like the pose history, but
+     * the request runs on CTRE's clock, so it's converted before being handed over
+     */
+    private void trackNote(Limelight.Frame frame) {
+        if (frame.ta() == 0) {
+            intakeDrive.clearTarget();
+            return;
         }
-      
-        turn = intakePID.calculate(tx);
 
-        if(ta == 0){
-            drive = 0.0;
-            turn = 0.0;
+        double headingAtCapture;
+        if (swerveDrive.getPoseHistory().getSampleAt(frame.captureTimestamp(), intakeFrameSample)) {
+            headingAtCapture = intakeFrameSample[PoseHistory.THETA];
+        } else {
+            swerveDrive.readDriveState(intakeFrameState);
+            headingAtCapture = intakeFrameState.pose.getRotation().getRadians();
         }
+        intakeDrive.setTarget(headingAtCapture - Math.toRadians(frame.tx()), Utils.fpgaToCurrentTime(frame.captureTimestamp()));
+    }
 
-        drive(maxSpeed, maxAngularRate, drive, 0.0, turn, false);
+    /* Translate with the driver's sticks while the odometry thread keeps the robot facing the alliance's target */
+    private void aimAt(Pose2d blueTarget, Pose2d redTarget) {
+        swerveDrive.setControl(aimDrive
+            .withTarget(AllianceManager.getAlliance() == DriverStation.Alliance.Blue ? blueTarget : redTarget)
+            .withDeadband(maxSpeed * 0.1) // Add a 10% deadband
+            .withVelocityX(xSupplier.getAsDouble() * maxSpeed)
+            .withVelocityY(ySupplier.getAsDouble() * maxSpeed));
     }
 
-    private void pointTowardsAngle(Double angle) {
-        anglePID.setSetpoint(angle);
-        Double turnValue = anglePID.calculate(swerveDrive.getPigeon2().getAngle());
-        drive(maxSpeed, maxAngularRate, xSupplier.get(), ySupplier.get(), turnValue, true);
+    /**
+     * Get the pose at a recent or slightly future time, e.g. when a camera frame was captured
+     *
+     * @param timestamp seconds, in the FPGA timebase
+     * @return the interpolated pose, or empty if the time is outside of the pose history
+     */
+    public Optional<Pose2d> getPoseAt(double timestamp) {
+        return swerveDrive.getPoseHistory().getPoseAt(timestamp);
     }
 
     public Pose2d getPose() {
-        return swerveDrive.getState().Pose;
+        swerveDrive.readDriveState(driveState);
+        return driveState.pose;
     }
 
+    /* Transitions are generated into CommandSwerveDrivetrainStateTable when compiling */
+    @StateGraph
     public enum State {
         UNDETERMINED,
-        FOLLOWING_AUTONOMOUS_COMMAND,
-        IDLE,
-        TRAVERSING,
-        AUTO_INTAKE,
-        AMP,
-        SOURCE,
-        SPEAKER_AA,
+        @Omni FOLLOWING_AUTONOMOUS_COMMAND,
+        @Omni IDLE,
+        @Omni TRAVERSING,
+        @Omni AUTO_INTAKE,
+        @Omni AMP,
+        @Omni SOURCE,
+        @Omni SPEAKER_AA,
         LOB_AA
     }
 }
@@ -0,0 +1,97 @@
+package frc.robot.subsystems.Drivetrain;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+
+/**
+ * Flags the moments the wheel odometry can't be trusted: a collision (more acceleration than the wheels can produce), a
+ * skid (a module that doesn't agree with the rigid body fit of the others), or the wheels turning the robot at a
+ * different rate than the gyro sees. Stays disturbed for a hold time after the last one. Updated by the odometry
+ * thread; the counters are ints so the main thread can read them without locking
+ */
+public class DisturbanceDetector {
+    private final Translation2d[] moduleLocations;
+    private final double collisionAccel, moduleError, yawRateError, holdTime;
+
+    private double disturbedUntil = Double.NEGATIVE_INFINITY;
+    private volatile boolean disturbed = false;
+    private volatile int collisions = 0, skids = 0;
+
+    /**
+     * @param moduleLocations module positions relative to the robot center, in the kinematics' order
+     * @param collisionAccel horizontal acceleration counted as a collision, in g
+     * @param moduleError speed in meters per second a module can be off the rigid body fit before it's a skid
+     * @param yawRateError radians per second the wheels' rotation can be off the gyro before it's a skid
+     * @param holdTime seconds to stay disturbed after the last collision or skid
+     */
+    public DisturbanceDetector(Translation2d[] moduleLocations, double collisionAccel, double moduleError,
+            double yawRateError, double holdTime) {
+        this.moduleLocations = moduleLocations;
+        this.collisionAccel = collisionAccel;
+        this.moduleError = moduleError;
+        this.yawRateError = yawRateError;
+        this.holdTime = holdTime;
+    }
+
+    /**
+     * Check one odometry update. Only call from the odometry thread
+     *
+     * @param timestamp seconds, in the FPGA timebase
+     * @param accelX robot relative acceleration from the gyro with gravity taken out, in g
+     * @param accelY robot relative acceleration from the gyro with gravity taken out, in g
+     * @param gyroYawRate counterclockwise, in radians per second
+     * @param vx robot relative x velocity of the kinematic fit of the module states
+     * @param vy robot relative y velocity of the kinematic fit of the module states
+     * @param omega counterclockwise rate of the kinematic fit of the module states
+     * @param moduleStates the measured module states the fit was made from
+     * @return whether the odometry should be distrusted right now
+     */
+    public boolean update(double timestamp, double accelX, double accelY, double gyroYawRate,
+            double vx, double vy, double omega, SwerveModuleState[] moduleStates) {
+        boolean collision = Math.hypot(accelX, accelY) > collisionAccel;
+
+        /* Each module should be moving as a point on the same rigid body as the fit says */
+        double worstError = 0;
+        for (int i = 0; i < moduleStates.length; i++) {
+            double fitX = vx - omega * moduleLocations[i].getY();
+            double fitY = vy + omega * moduleLocations[i].getX();
+            double speed = moduleStates[i].speedMetersPerSecond;
+            double errorX = speed * moduleStates[i].angle.getCos() - fitX;
+            double errorY = speed * moduleStates[i].angle.getSin() - fitY;
+            worstError = Math.max(worstError, Math.hypot(errorX, errorY));
+        }
+        boolean skid = worstError > moduleError || Math.abs(gyroYawRate - omega) > yawRateError;
+
+        if (collision || skid) {
+            /* Only count the start of an event, not every update of it */
+            if (timestamp > disturbedUntil) {
+                if (collision) collisions++;
+                else skids++;
+            }
+            disturbedUntil = timestamp + holdTime;
+        }
+        disturbed = timestamp <= disturbedUntil;
+        return disturbed;
+    }
+
+    /**
+     * @return whether the last update was disturbed
+     */
+    public boolean isDisturbed() {
+        return disturbed;
+    }
+
+    /**
+     * @return collisions seen so far
+     */
+    public int getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * @return skids seen so far
+     */
+    public int getSkids() {
+        return skids;
+    }
+}
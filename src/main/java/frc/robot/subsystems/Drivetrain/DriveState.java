@@ -0,0 +1,55 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.util.Arrays;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/**
+ * Everything about the drivetrain from a single odometry update. Readers get their own copy from
+ * {@link DriveStateBuffer#read(DriveState)}, so a DriveState never changes underneath whoever is
+ * holding it, and copying into an existing one doesn't allocate
+ */
+public class DriveState {
+    /* FPGA time of the odometry update, in seconds. Not CTRE's Utils.getCurrentTimeSeconds() */
+    public double timestamp = 0.0;
+    public Pose2d pose = new Pose2d();
+    /* Raw gyro yaw, without the field relative offset */
+    public Rotation2d gyroYaw = new Rotation2d();
+    /* Yaw rate from the gyro, in radians per second counterclockwise */
+    public double yawRate = 0.0;
+
+    /* Chassis speeds relative to the robot, in meters and radians per second */
+    public double robotVx = 0.0, robotVy = 0.0, omega = 0.0;
+    /* Chassis speeds relative to the field, in meters per second */
+    public double fieldVx = 0.0, fieldVy = 0.0;
+
+    /* Indexed by module, in the order the modules were given to the drivetrain */
+    public final double[] moduleSpeeds, moduleDistances;
+    public final Rotation2d[] moduleAngles, modulePositionAngles;
+
+    public DriveState(int moduleCount) {
+        moduleSpeeds = new double[moduleCount];
+        moduleDistances = new double[moduleCount];
+        moduleAngles = new Rotation2d[moduleCount];
+        modulePositionAngles = new Rotation2d[moduleCount];
+        Arrays.fill(moduleAngles, new Rotation2d());
+        Arrays.fill(modulePositionAngles, new Rotation2d());
+    }
+
+    public void copyFrom(DriveState other) {
+        timestamp = other.timestamp;
+        pose = other.pose;
+        gyroYaw = other.gyroYaw;
+        yawRate = other.yawRate;
+        robotVx = other.robotVx;
+        robotVy = other.robotVy;
+        omega = other.omega;
+        fieldVx = other.fieldVx;
+        fieldVy = other.fieldVy;
+        System.arraycopy(other.moduleSpeeds, 0, moduleSpeeds, 0, moduleSpeeds.length);
+        System.arraycopy(other.moduleAngles, 0, moduleAngles, 0, moduleAngles.length);
+        System.arraycopy(other.moduleDistances, 0, moduleDistances, 0, moduleDistances.length);
+        System.arraycopy(other.modulePositionAngles, 0, modulePositionAngles, 0, modulePositionAngles.length);
+    }
+}
@@ -0,0 +1,49 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Double buffered, seqlock style holder for the latest {@link DriveState}. The odometry thread is
+ * the only writer and fills whichever buffer isn't published, so it never waits on readers. Readers
+ * copy the published buffer and retry in the rare case the writer lapped them mid-copy
+ */
+public class DriveStateBuffer {
+    private final DriveState[] buffers;
+    /* Number of states published so far, the latest one is in buffers[version & 1] */
+    private volatile int version = 0;
+
+    public DriveStateBuffer(int moduleCount) {
+        buffers = new DriveState[] { new DriveState(moduleCount), new DriveState(moduleCount) };
+    }
+
+    /**
+     * Get the buffer to fill with the next state. Only call from the writer thread, and follow with
+     * {@link #publish()} once it is filled
+     */
+    public DriveState beginWrite() {
+        return buffers[(version + 1) & 1];
+    }
+
+    /** Make the buffer from {@link #beginWrite()} the latest state */
+    public void publish() {
+        version = version + 1;
+    }
+
+    /**
+     * Copy the latest state
+     *
+     * @param out the state to copy into
+     * @return the version that was copied, goes up by one every odometry update
+     */
+    public int read(DriveState out) {
+        while (true) {
+            int start = version;
+            out.copyFrom(buffers[start & 1]);
+
+            /* Keep the copy from being reordered after the check below */
+            VarHandle.acquireFence();
+            /* Once the version moves on, the writer may be refilling the buffer we just copied */
+            if (version == start) return start;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.util.function.Supplier;
+
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule.DriveRequestType;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest;
+import com.ctre.phoenix6.mechanisms.swerve.utility.PhoenixPIDController;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+/**
+ * Field centric drive that keeps the front of the robot pointed at a point on the field. Works like CTRE's
+ * FieldCentricFacingAngle, but the heading to face is recomputed from the pose on every odometry update, and the
+ * rate the line of sight turns as the robot drives is fed forward so the heading doesn't lag behind while moving.
+ * Like every swerve request this is applied by the odometry thread, so none of it runs in the main loop. The result
+ * goes through the drivetrain's {@link SwerveSetpointGenerator}
+ */
+public class FieldCentricFacingPoint implements SwerveRequest {
+    /* Field centric velocity, in meters per second, with the same operator perspective as FieldCentric */
+    public double VelocityX = 0;
+    public double VelocityY = 0;
+    /* The point to face, in blue origin field coordinates */
+    public double TargetX = 0;
+    public double TargetY = 0;
+    /* Deadband on the translation, in meters per second */
+    public double Deadband = 0;
+    public DriveRequestType DriveRequestType = SwerveModule.DriveRequestType.OpenLoopVoltage;
+    /* Heading controller in radians, output in radians per second. Has continuous input on [-pi, pi] */
+    public final PhoenixPIDController HeadingController = new PhoenixPIDController(0, 0, 0);
+
+    private final LimitedDrive drive;
+    /* The target is a field position, so the bearing to it is taken from the field pose, not the request's pose */
+    private final FieldPose fieldPose;
+
+    /**
+     * @param generator the setpoint generator shared by every request on the drivetrain
+     * @param fieldRelativeOffset the drivetrain's field relative offset, see {@link FieldPose}
+     */
+    public FieldCentricFacingPoint(SwerveSetpointGenerator generator, Supplier<Rotation2d> fieldRelativeOffset) {
+        drive = new LimitedDrive(generator).withFieldCentric(true);
+        fieldPose = new FieldPose(fieldRelativeOffset);
+        HeadingController.enableContinuousInput(-Math.PI, Math.PI);
+    }
+
+    @Override
+    public StatusCode apply(SwerveControlRequestParameters parameters, SwerveModule... modulesToApply) {
+        fieldPose.update(parameters.currentPose);
+        double dx = TargetX - fieldPose.getX();
+        double dy = TargetY - fieldPose.getY();
+        double distanceSquared = dx * dx + dy * dy;
+
+        /* Rate the bearing to the target changes at from the robot's own field relative velocity */
+        ChassisSpeeds speeds = parameters.currentChassisSpeed;
+        double cos = fieldPose.getCos();
+        double sin = fieldPose.getSin();
+        double fieldVx = speeds.vxMetersPerSecond * cos - speeds.vyMetersPerSecond * sin;
+        double fieldVy = speeds.vxMetersPerSecond * sin + speeds.vyMetersPerSecond * cos;
+        double feedforward = distanceSquared > 1e-6 ? (dy * fieldVx - dx * fieldVy) / distanceSquared : 0.0;
+
+        /* The bearing is a field heading, take the field relative offset back out to compare it with the request's pose */
+        double heading = parameters.currentPose.getRotation().getRadians();
+        double targetHeading = Math.atan2(dy, dx) - (fieldPose.getTheta() - heading);
+        double rotationalRate = HeadingController.calculate(heading, targetHeading, parameters.timestamp) + feedforward;
+
+        return drive
+            .withVelocityX(VelocityX)
+            .withVelocityY(VelocityY)
+            .withRotationalRate(rotationalRate)
+            .withDeadband(Deadband)
+            .withDriveRequestType(DriveRequestType)
+            .apply(parameters, modulesToApply);
+    }
+
+    public FieldCentricFacingPoint withVelocityX(double velocityX) {
+        this.VelocityX = velocityX;
+        return this;
+    }
+
+    public FieldCentricFacingPoint withVelocityY(double velocityY) {
+        this.VelocityY = velocityY;
+        return this;
+    }
+
+    public FieldCentricFacingPoint withTarget(Pose2d target) {
+        this.TargetX = target.getX();
+        this.TargetY = target.getY();
+        return this;
+    }
+
+    public FieldCentricFacingPoint withDeadband(double deadband) {
+        this.Deadband = deadband;
+        return this;
+    }
+
+    public FieldCentricFacingPoint withDriveRequestType(DriveRequestType driveRequestType) {
+        this.DriveRequestType = driveRequestType;
+        return this;
+    }
+}
@@ -0,0 +1,80 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.util.function.Supplier;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/**
+ * The fused field pose, recovered from the pose a swerve request is handed. Phoenix gives requests the estimator's
+ * pose relative to the field relative offset that seedFieldRelative() sets, which is what field centric driving wants
+ * but not the frame of the field, the pose history or PathPlanner. Anything aimed at a field position has to undo the
+ * offset first. Each request keeps its own and updates it in place, so nothing is allocated in the odometry thread
+ */
+public class FieldPose {
+    private final Supplier<Rotation2d> fieldRelativeOffset;
+
+    private double x = 0, y = 0, theta = 0;
+    private double cos = 1, sin = 0;
+
+    /**
+     * @param fieldRelativeOffset the drivetrain's current field relative offset, see
+     *     {@link SwerveDrive#getFieldRelativeOffset()}
+     */
+    public FieldPose(Supplier<Rotation2d> fieldRelativeOffset) {
+        this.fieldRelativeOffset = fieldRelativeOffset;
+    }
+
+    /**
+     * Recompute the field pose
+     *
+     * @param requestPose the pose from the request parameters, relative to the field relative offset
+     */
+    public void update(Pose2d requestPose) {
+        Rotation2d offset = fieldRelativeOffset.get();
+        double offsetCos = offset.getCos();
+        double offsetSin = offset.getSin();
+
+        x = requestPose.getX() * offsetCos - requestPose.getY() * offsetSin;
+        y = requestPose.getX() * offsetSin + requestPose.getY() * offsetCos;
+        theta = MathUtil.angleModulus(requestPose.getRotation().getRadians() + offset.getRadians());
+        cos = Math.cos(theta);
+        sin = Math.sin(theta);
+    }
+
+    /**
+     * @return field x, in meters from the blue origin
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * @return field y, in meters from the blue origin
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return field heading, in radians counterclockwise on [-pi, pi]
+     */
+    public double getTheta() {
+        return theta;
+    }
+
+    /**
+     * @return cosine of the field heading
+     */
+    public double getCos() {
+        return cos;
+    }
+
+    /**
+     * @return sine of the field heading
+     */
+    public double getSin() {
+        return sin;
+    }
+}
@@ -0,0 +1,128 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.util.function.Supplier;
+
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule.DriveRequestType;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest;
+import com.ctre.phoenix6.mechanisms.swerve.utility.PhoenixPIDController;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+/**
+ * Path following that closes the holonomic loop in the odometry thread. The main loop only hands over the path's
+ * target pose and feedforward speeds; every odometry update then moves the target along by the feedforward and corrects
+ * toward it from the fused pose, so tracking error is fixed at the odometry frequency instead of 50 Hz. Applied in
+ * closed loop velocity through the drivetrain's {@link SwerveSetpointGenerator}
+ */
+public class FollowPathDrive implements SwerveRequest {
+    /* Seconds without a new target before the feedforward is dropped and the robot just holds the last target */
+    public static final double STALE_TIME = 0.1;
+
+    public DriveRequestType DriveRequestType = SwerveModule.DriveRequestType.Velocity;
+    /* Field position controllers in meters, output in meters per second */
+    public final PhoenixPIDController XController = new PhoenixPIDController(0, 0, 0);
+    public final PhoenixPIDController YController = new PhoenixPIDController(0, 0, 0);
+    /* Heading controller in radians, output in radians per second. Has continuous input on [-pi, pi] */
+    public final PhoenixPIDController HeadingController = new PhoenixPIDController(0, 0, 0);
+
+    /* Written by the main loop, read by the odometry thread, both under the lock */
+    private final Object targetLock = new Object();
+    private double targetX = 0, targetY = 0, targetTheta = 0;
+    private double feedforwardX = 0, feedforwardY = 0, feedforwardOmega = 0;
+    private double targetTimestamp = Double.NEGATIVE_INFINITY;
+
+    private final LimitedDrive drive;
+    /* PathPlanner's targets are field poses, so the feedback runs against the field pose, not the request's pose */
+    private final FieldPose fieldPose;
+
+    /**
+     * @param generator the setpoint generator shared by every request on the drivetrain
+     * @param fieldRelativeOffset the drivetrain's field relative offset, see {@link FieldPose}
+     */
+    public FollowPathDrive(SwerveSetpointGenerator generator, Supplier<Rotation2d> fieldRelativeOffset) {
+        drive = new LimitedDrive(generator).withFieldCentric(false);
+        fieldPose = new FieldPose(fieldRelativeOffset);
+        HeadingController.enableContinuousInput(-Math.PI, Math.PI);
+    }
+
+    /**
+     * Set where the path wants the robot right now
+     *
+     * @param pose the path's target pose, in the blue origin frame of the fused pose (not offset by
+     *     seedFieldRelative())
+     * @param timestamp when the path was sampled, in seconds in CTRE's timebase (Utils.getCurrentTimeSeconds()), the
+     *     same clock as the request parameters. Not FPGA time
+     */
+    public void setTargetPose(Pose2d pose, double timestamp) {
+        synchronized (targetLock) {
+            targetX = pose.getX();
+            targetY = pose.getY();
+            targetTheta = pose.getRotation().getRadians();
+            targetTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * Set the path's feedforward speeds
+     *
+     * @param speeds robot relative speeds, as the path follower outputs them
+     * @param heading the robot heading the path follower turned them robot relative with
+     */
+    public void setFeedforward(ChassisSpeeds speeds, Rotation2d heading) {
+        double cos = heading.getCos();
+        double sin = heading.getSin();
+        synchronized (targetLock) {
+            feedforwardX = speeds.vxMetersPerSecond * cos - speeds.vyMetersPerSecond * sin;
+            feedforwardY = speeds.vxMetersPerSecond * sin + speeds.vyMetersPerSecond * cos;
+            feedforwardOmega = speeds.omegaRadiansPerSecond;
+        }
+    }
+
+    @Override
+    public StatusCode apply(SwerveControlRequestParameters parameters, SwerveModule... modulesToApply) {
+        double x, y, theta, vx, vy, omega, elapsed;
+        synchronized (targetLock) {
+            x = targetX;
+            y = targetY;
+            theta = targetTheta;
+            vx = feedforwardX;
+            vy = feedforwardY;
+            omega = feedforwardOmega;
+            elapsed = parameters.timestamp - targetTimestamp;
+        }
+
+        if (elapsed > STALE_TIME) {
+            vx = 0;
+            vy = 0;
+            omega = 0;
+        } else if (elapsed > 0) {
+            /* The target was sampled on the last main loop, carry it along the path to now */
+            x += vx * elapsed;
+            y += vy * elapsed;
+            theta += omega * elapsed;
+        }
+
+        fieldPose.update(parameters.currentPose);
+        double fieldX = vx + XController.calculate(fieldPose.getX(), x, parameters.timestamp);
+        double fieldY = vy + YController.calculate(fieldPose.getY(), y, parameters.timestamp);
+        double rotation = omega + HeadingController.calculate(fieldPose.getTheta(), theta, parameters.timestamp);
+
+        double headingCos = fieldPose.getCos();
+        double headingSin = fieldPose.getSin();
+        return drive
+            .withDriveRequestType(DriveRequestType)
+            .withVelocityX(fieldX * headingCos + fieldY * headingSin)
+            .withVelocityY(-fieldX * headingSin + fieldY * headingCos)
+            .withRotationalRate(rotation)
+            .apply(parameters, modulesToApply);
+    }
+
+    public FollowPathDrive withDriveRequestType(DriveRequestType driveRequestType) {
+        this.DriveRequestType = driveRequestType;
+        return this;
+    }
+}
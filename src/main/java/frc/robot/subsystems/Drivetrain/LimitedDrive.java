@@ -0,0 +1,98 @@
+package frc.robot.subsystems.Drivetrain;
+
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule.DriveRequestType;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest;
+
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+/**
+ * Field or robot centric drive, like CTRE's FieldCentric and RobotCentric requests, that goes through a
+ * {@link SwerveSetpointGenerator} before reaching the modules
+ */
+public class LimitedDrive implements SwerveRequest {
+    /* Velocity in meters per second, field centric (with the operator perspective) or robot centric */
+    public double VelocityX = 0;
+    public double VelocityY = 0;
+    /* Counterclockwise rate, in radians per second */
+    public double RotationalRate = 0;
+    public double Deadband = 0;
+    public double RotationalDeadband = 0;
+    public boolean FieldCentric = true;
+    public DriveRequestType DriveRequestType = SwerveModule.DriveRequestType.OpenLoopVoltage;
+
+    private final SwerveSetpointGenerator generator;
+    private final SwerveRequest.ApplyChassisSpeeds applySpeeds = new SwerveRequest.ApplyChassisSpeeds();
+
+    /**
+     * @param generator the generator shared by every request on the drivetrain, so switching requests doesn't reset it
+     */
+    public LimitedDrive(SwerveSetpointGenerator generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public StatusCode apply(SwerveControlRequestParameters parameters, SwerveModule... modulesToApply) {
+        double x = VelocityX;
+        double y = VelocityY;
+        double rotation = RotationalRate;
+
+        if (Math.hypot(x, y) < Deadband) {
+            x = 0;
+            y = 0;
+        }
+        if (Math.abs(rotation) < RotationalDeadband) rotation = 0;
+
+        if (FieldCentric) {
+            /* Same as FieldCentric: into the blue origin frame with the operator perspective, then into the robot's frame */
+            double forwardCos = parameters.operatorForwardDirection.getCos();
+            double forwardSin = parameters.operatorForwardDirection.getSin();
+            double fieldX = x * forwardCos - y * forwardSin;
+            double fieldY = x * forwardSin + y * forwardCos;
+
+            double headingCos = parameters.currentPose.getRotation().getCos();
+            double headingSin = parameters.currentPose.getRotation().getSin();
+            x = fieldX * headingCos + fieldY * headingSin;
+            y = -fieldX * headingSin + fieldY * headingCos;
+        }
+
+        ChassisSpeeds setpoint = generator.generate(x, y, rotation, parameters);
+        return applySpeeds.withSpeeds(setpoint).withDriveRequestType(DriveRequestType).apply(parameters, modulesToApply);
+    }
+
+    public LimitedDrive withVelocityX(double velocityX) {
+        this.VelocityX = velocityX;
+        return this;
+    }
+
+    public LimitedDrive withVelocityY(double velocityY) {
+        this.VelocityY = velocityY;
+        return this;
+    }
+
+    public LimitedDrive withRotationalRate(double rotationalRate) {
+        this.RotationalRate = rotationalRate;
+        return this;
+    }
+
+    public LimitedDrive withDeadband(double deadband) {
+        this.Deadband = deadband;
+        return this;
+    }
+
+    public LimitedDrive withRotationalDeadband(double rotationalDeadband) {
+        this.RotationalDeadband = rotationalDeadband;
+        return this;
+    }
+
+    public LimitedDrive withFieldCentric(boolean fieldCentric) {
+        this.FieldCentric = fieldCentric;
+        return this;
+    }
+
+    public LimitedDrive withDriveRequestType(DriveRequestType driveRequestType) {
+        this.DriveRequestType = driveRequestType;
+        return this;
+    }
+}
@@ -0,0 +1,97 @@
+package frc.robot.subsystems.Drivetrain;
+
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Health of the odometry thread, kept separately for each phase of the match: a histogram of the time between
+ * odometry updates, the worst gap, failed signal refreshes and stale module samples. The odometry thread records and
+ * the main thread publishes; every counter is an int so neither side can see a torn value, and nothing allocates
+ */
+public class OdometryHealth {
+    public enum Phase {
+        DISABLED,
+        AUTONOMOUS,
+        TELEOP,
+        TEST
+    }
+
+    /* Upper bound (milliseconds) of each period bucket, the last bucket catches everything above */
+    private static final double[] BUCKET_BOUNDS_MS = {2, 3, 4, 5, 6, 8, 10, 15, 20, 50, Double.POSITIVE_INFINITY};
+
+    private static final Phase[] PHASES = Phase.values();
+
+    /* Index [phase][bucket] */
+    private final int[][] periodBuckets = new int[PHASES.length][BUCKET_BOUNDS_MS.length];
+    private final int[] updates = new int[PHASES.length];
+    private final int[] worstGapMicros = new int[PHASES.length];
+    private final int[] failedRefreshes = new int[PHASES.length];
+    private final int[] staleSamples = new int[PHASES.length];
+
+    private volatile Phase phase = Phase.DISABLED;
+    private int lastFailedDaqs = 0;
+
+    /* Reused when publishing */
+    private final long[] publishBuckets = new long[BUCKET_BOUNDS_MS.length];
+    private final String[] bucketsKeys = new String[PHASES.length];
+    private final String[] updatesKeys = new String[PHASES.length];
+    private final String[] worstGapKeys = new String[PHASES.length];
+    private final String[] failedKeys = new String[PHASES.length];
+    private final String[] staleKeys = new String[PHASES.length];
+
+    public OdometryHealth(String prefix) {
+        for (Phase p : PHASES) {
+            String phasePrefix = prefix + "/" + p.name() + "/";
+            bucketsKeys[p.ordinal()] = phasePrefix + "PeriodHistogram";
+            updatesKeys[p.ordinal()] = phasePrefix + "Updates";
+            worstGapKeys[p.ordinal()] = phasePrefix + "WorstGapMs";
+            failedKeys[p.ordinal()] = phasePrefix + "FailedRefreshes";
+            staleKeys[p.ordinal()] = phasePrefix + "StaleModuleSamples";
+        }
+
+        Logger.recordOutput(prefix + "/PeriodBucketBoundsMs", BUCKET_BOUNDS_MS);
+    }
+
+    /** Set the phase new samples are counted toward. Called from the main thread */
+    public void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Record one odometry update. Only call from the odometry thread
+     *
+     * @param gapSeconds time since the previous update
+     * @param totalFailedDaqs the drivetrain's running count of failed signal refreshes
+     * @param staleModules how many modules had a sample that wasn't refreshed by this update
+     */
+    public void record(double gapSeconds, int totalFailedDaqs, int staleModules) {
+        int p = phase.ordinal();
+        double gapMs = gapSeconds * 1000.0;
+
+        int bucket = 0;
+        while (gapMs > BUCKET_BOUNDS_MS[bucket]) bucket++;
+        periodBuckets[p][bucket]++;
+        updates[p]++;
+
+        int gapMicros = (int) Math.min(Integer.MAX_VALUE, gapSeconds * 1e6);
+        if (gapMicros > worstGapMicros[p]) worstGapMicros[p] = gapMicros;
+
+        failedRefreshes[p] += Math.max(0, totalFailedDaqs - lastFailedDaqs);
+        lastFailedDaqs = totalFailedDaqs;
+        staleSamples[p] += staleModules;
+    }
+
+    /** Publish every phase through AdvantageKit. Called from the main thread */
+    public void publish() {
+        for (int p = 0; p < PHASES.length; p++) {
+            for (int bucket = 0; bucket < publishBuckets.length; bucket++) {
+                publishBuckets[bucket] = periodBuckets[p][bucket];
+            }
+
+            Logger.recordOutput(bucketsKeys[p], publishBuckets);
+            Logger.recordOutput(updatesKeys[p], updates[p]);
+            Logger.recordOutput(worstGapKeys[p], worstGapMicros[p] / 1000.0);
+            Logger.recordOutput(failedKeys[p], failedRefreshes[p]);
+            Logger.recordOutput(staleKeys[p], staleSamples[p]);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.lang.invoke.VarHandle;
+import java.util.Optional;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/**
+ * Fixed size history of field relative poses and velocities, filled by the odometry thread. Samples are kept in
+ * primitive arrays indexed as a ring, so adding one never allocates. Lookups binary search for the two samples around
+ * the requested time and interpolate between them, or extrapolate a short way past the newest sample. Timestamps are
+ * FPGA time, the pose estimator's and the cameras' clock, not CTRE's Utils.getCurrentTimeSeconds()
+ */
+public class PoseHistory {
+    /* How far back lookups are guaranteed to reach, in seconds */
+    public static final double HISTORY_SECONDS = 2;
+    /* Lookups stay this many samples away from the oldest one, so the writer can keep going while they search */
+    private static final int GUARD = 16;
+    /* How far past the newest sample a lookup is allowed to extrapolate, in seconds */
+    public static final double MAX_EXTRAPOLATION = 0.1;
+
+    /* Index of x, y, theta, vx, vy and omega in the arrays filled by getSampleAt */
+    public static final int X = 0, Y = 1, THETA = 2, VX = 3, VY = 4, OMEGA = 5;
+
+    /* HISTORY_SECONDS of samples plus the guard, rounded up to a power of two so the ring index is a mask */
+    private final int capacity;
+    private final int mask;
+
+    private final double[] t;
+    private final double[] x;
+    private final double[] y;
+    private final double[] theta;
+    private final double[] vx;
+    private final double[] vy;
+    private final double[] omega;
+
+    /* Number of samples ever added, the newest one is at (count - 1) & mask */
+    private volatile long count = 0;
+
+    /**
+     * @param updateFrequencyHz how often samples are added, the odometry thread's update frequency
+     */
+    public PoseHistory(double updateFrequencyHz) {
+        int needed = (int) Math.ceil(HISTORY_SECONDS * updateFrequencyHz) + GUARD;
+        capacity = Integer.highestOneBit(needed - 1) << 1;
+        mask = capacity - 1;
+
+        t = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        theta = new double[capacity];
+        vx = new double[capacity];
+        vy = new double[capacity];
+        omega = new double[capacity];
+    }
+
+    /**
+     * @return number of samples the ring holds, lookups can use all but the guard band
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Add a sample. Only call from one thread, with increasing timestamps
+     *
+     * @param timestamp seconds, in the FPGA timebase
+     * @param fieldVx field relative velocity, meters per second
+     * @param fieldVy field relative velocity, meters per second
+     * @param omegaRadPerSec counterclockwise angular velocity
+     */
+    public void add(double timestamp, double poseX, double poseY, double poseTheta, double fieldVx, double fieldVy, double omegaRadPerSec) {
+        long n = count;
+        int i = (int) (n & mask);
+
+        t[i] = timestamp;
+        x[i] = poseX;
+        y[i] = poseY;
+        theta[i] = poseTheta;
+        vx[i] = fieldVx;
+        vy[i] = fieldVy;
+        omega[i] = omegaRadPerSec;
+
+        count = n + 1;
+    }
+
+    /**
+     * Get the pose at a time, interpolated between the samples around it
+     *
+     * @param timestamp seconds, in the FPGA timebase
+     * @return the pose, or empty if the time is older than the history or too far past the newest sample
+     */
+    public Optional<Pose2d> getPoseAt(double timestamp) {
+        double[] sample = new double[6];
+        if (!getSampleAt(timestamp, sample)) return Optional.empty();
+
+        return Optional.of(new Pose2d(sample[X], sample[Y], new Rotation2d(sample[THETA])));
+    }
+
+    /**
+     * Get the pose and velocity at a time without allocating
+     *
+     * @param timestamp seconds, in the FPGA timebase
+     * @param out filled with x, y, theta, vx, vy and omega, see {@link #X} and friends
+     * @return whether the time was covered by the history, out only holds a sample if it was
+     */
+    public boolean getSampleAt(double timestamp, double[] out) {
+        while (true) {
+            long end = count;
+            if (end == 0) return false;
+            long start = Math.max(0, end - (capacity - GUARD));
+
+            boolean found = interpolate(timestamp, start, end, out);
+
+            /* Make sure the writer hasn't lapped the oldest sample we could have read */
+            VarHandle.acquireFence();
+            if (count - start < capacity) return found;
+        }
+    }
+
+    private boolean interpolate(double timestamp, long start, long end, double[] out) {
+        int newest = (int) ((end - 1) & mask);
+
+        if (timestamp >= t[newest]) {
+            double dt = timestamp - t[newest];
+            if (dt > MAX_EXTRAPOLATION) return false;
+
+            out[X] = x[newest] + vx[newest] * dt;
+            out[Y] = y[newest] + vy[newest] * dt;
+            out[THETA] = MathUtil.angleModulus(theta[newest] + omega[newest] * dt);
+            out[VX] = vx[newest];
+            out[VY] = vy[newest];
+            out[OMEGA] = omega[newest];
+            return true;
+        }
+
+        if (timestamp < t[(int) (start & mask)]) return false;
+
+        /* Find the last sample at or before the timestamp, the one after it is past it */
+        long low = start, high = end - 1;
+        while (high - low > 1) {
+            long mid = (low + high) >>> 1;
+            if (t[(int) (mid & mask)] <= timestamp) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+
+        int a = (int) (low & mask);
+        int b = (int) (high & mask);
+        double span = t[b] - t[a];
+        double k = span > 0 ? (timestamp - t[a]) / span : 0.0;
+
+        out[X] = x[a] + (x[b] - x[a]) * k;
+        out[Y] = y[a] + (y[b] - y[a]) * k;
+        out[THETA] = MathUtil.angleModulus(theta[a] + MathUtil.angleModulus(theta[b] - theta[a]) * k);
+        out[VX] = vx[a] + (vx[b] - vx[a]) * k;
+        out[VY] = vy[a] + (vy[b] - vy[a]) * k;
+        out[OMEGA] = omega[a] + (omega[b] - omega[a]) * k;
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package frc.robot.subsystems.Drivetrain;
+
+import java.util.function.Supplier;
+
+import com.ctre.phoenix6.StatusCode;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveModule.DriveRequestType;
+import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest;
+import com.ctre.phoenix6.mechanisms.swerve.utility.PhoenixPIDController;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+/**
+ * Robot centric drive that turns toward a field heading that can be updated from another thread, e.g. by a camera
+ * listener. The translation is scaled down by how far off the heading is, so the robot only drives at full speed once
+ * it is lined up. Stops if the heading isn't refreshed for {@link #STALE_TIME}. Applied by the odometry thread through
+ * the drivetrain's {@link SwerveSetpointGenerator}
+ */
+public class RobotCentricFacingAngle implements SwerveRequest {
+    /* Seconds without a new target before the robot stops chasing the old one */
+    public static final double STALE_TIME = 0.25;
+
+    /* Robot centric velocity when lined up, in meters per second */
+    public double VelocityX = 0;
+    public double VelocityY = 0;
+    public DriveRequestType DriveRequestType = SwerveModule.DriveRequestType.OpenLoopVoltage;
+    /* Heading controller in radians, output in radians per second. Has continuous input on [-pi, pi] */
+    public final PhoenixPIDController HeadingController = new PhoenixPIDController(0, 0, 0);
+
+    /* Written by whoever finds the target, read by the odometry thread */
+    private volatile double targetHeading = 0;
+    private volatile double targetTimestamp = Double.NEGATIVE_INFINITY;
+
+    private final LimitedDrive drive;
+    /* The target is a field heading, so it's compared against the field pose, not the request's pose */
+    private final FieldPose fieldPose;
+
+    /**
+     * @param generator the setpoint generator shared by every request on the drivetrain
+     * @param fieldRelativeOffset the drivetrain's field relative offset, see {@link FieldPose}
+     */
+    public RobotCentricFacingAngle(SwerveSetpointGenerator generator, Supplier<Rotation2d> fieldRelativeOffset) {
+        drive = new LimitedDrive(generator).withFieldCentric(false);
+        fieldPose = new FieldPose(fieldRelativeOffset);
+        HeadingController.enableContinuousInput(-Math.PI, Math.PI);
+    }
+
+    /**
+     * Set the heading to turn to. Safe to call from any thread
+     *
+     * @param heading field heading, in radians counterclockwise, in the fused pose's frame (not offset by
+     *     seedFieldRelative())
+     * @param timestamp when the target was seen, in seconds in CTRE's timebase (see Utils.fpgaToCurrentTime), the
+     *     same clock as the request parameters
+     */
+    public void setTarget(double heading, double timestamp) {
+        targetHeading = heading;
+        targetTimestamp = timestamp;
+    }
+
+    /** Stop chasing the current target. Safe to call from any thread */
+    public void clearTarget() {
+        targetTimestamp = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public StatusCode apply(SwerveControlRequestParameters parameters, SwerveModule... modulesToApply) {
+        drive.withDriveRequestType(DriveRequestType);
+
+        if (parameters.timestamp - targetTimestamp > STALE_TIME) {
+            return drive.withVelocityX(0).withVelocityY(0).withRotationalRate(0).apply(parameters, modulesToApply);
+        }
+
+        fieldPose.update(parameters.currentPose);
+        double heading = fieldPose.getTheta();
+        double error = MathUtil.angleModulus(targetHeading - heading);
+        double alignment = Math.max(0.0, Math.cos(error));
+
+        return drive
+            .withVelocityX(VelocityX * alignment)
+            .withVelocityY(VelocityY * alignment)
+            .withRotationalRate(HeadingController.calculate(heading, targetHeading, parameters.timestamp))
+            .apply(parameters, modulesToApply);
+    }
+
+    public RobotCentricFacingAngle withVelocityX(double velocityX) {
+        this.VelocityX = velocityX;
+        return this;
+    }
+
+    public RobotCentricFacingAngle withVelocityY(double velocityY) {
+        this.VelocityY = velocityY;
+        return this;
+    }
+
+    public RobotCentricFacingAngle withDriveRequestType(DriveRequestType driveRequestType) {
+        this.DriveRequestType = driveRequestType;
+        return this;
+    }
+}
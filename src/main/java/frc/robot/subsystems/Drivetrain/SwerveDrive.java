@@ -1,17 +1,23 @@
 package frc.robot.subsystems.Drivetrain;
 
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
+import org.littletonrobotics.junction.Logger;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.Utils;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveDrivetrain;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveDrivetrainConstants;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveModuleConstants;
 import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest;
 
-import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
-import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.VecBuilder;
 import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.DriverStation.Alliance;
 import edu.wpi.first.wpilibj.smartdashboard.Field2d;
@@ -33,7 +39,25 @@ public class SwerveDrive extends SwerveDrivetrain{
     private Notifier simNotifier = null;
     private double lastSimTime;
     private Field2d field = new Field2d();
-    private SwerveDrivePoseEstimator odometry;
+    /* Vision estimates waiting to be fused by the odometry thread, dropped if it falls this far behind */
+    private static final int VISION_QUEUE_SIZE = 16;
+    private final ArrayBlockingQueue<Vision.VisionEstimate> visionQueue = new ArrayBlockingQueue<>(VISION_QUEUE_SIZE);
+
+    /* Published by the odometry thread after every update, see publishDriveState */
+    private DriveStateBuffer driveState;
+    private DriveState periodicState;
+    private final PoseHistory poseHistory;
+    private final OdometryHealth odometryHealth = new OdometryHealth("Drivetrain/Odometry");
+    private StatusSignal<Double>[] drivePositionGetters;
+    private double lastPublishTime = Double.NaN;
+    private StatusSignal<Double> yawGetter, angularVelocityGetter;
+    /* Our own copies of the signals, refreshed at the start of every publish */
+    private BaseStatusSignal[] publishSignals;
+    /* Collisions and skids, while one is going on vision is trusted over the wheels */
+    private DisturbanceDetector disturbanceDetector;
+    private StatusSignal<Double> accelXGetter, accelYGetter, gravityXGetter, gravityYGetter;
+    private static final double ACCEL_UPDATE_FREQUENCY = 100;
+    private volatile Consumer<SwerveDriveState> telemetryFunction = null;
 
     /* Blue alliance sees forward as 0 degrees (toward red alliance wall) */
     private final Rotation2d BlueAlliancePerspectiveRotation = Rotation2d.fromDegrees(0);
@@ -44,19 +68,22 @@ public class SwerveDrive extends SwerveDrivetrain{
 
     public SwerveDrive(SwerveDrivetrainConstants driveTrainConstants, double OdometryUpdateFrequency, SwerveModuleConstants... modules) {
         super(driveTrainConstants, OdometryUpdateFrequency, modules);
+        poseHistory = new PoseHistory(OdometryUpdateFrequency);
         if (Utils.isSimulation()) {
             startSimThread();
         }
         initVision();
-        odometry = new SwerveDrivePoseEstimator(m_kinematics, m_fieldRelativeOffset, m_modulePositions, new Pose2d());
+        initDriveState(modules.length);
     }
     public SwerveDrive(SwerveDrivetrainConstants driveTrainConstants, SwerveModuleConstants... modules) {
         super(driveTrainConstants, modules);
+        /* Phoenix picks 250 Hz on CAN FD and 100 Hz otherwise, size for the faster one */
+        poseHistory = new PoseHistory(250);
         if (Utils.isSimulation()) {
             startSimThread();
         }
         initVision();
-        odometry = new SwerveDrivePoseEstimator(m_kinematics, m_fieldRelativeOffset, m_modulePositions, new Pose2d());
+        initDriveState(modules.length);
     }
 
     private void initVision() {
@@ -70,6 +97,165 @@ public class SwerveDrive extends SwerveDrivetrain{
         SmartDashboard.putData("Vision Pose", field);
     }
 
+    @SuppressWarnings("unchecked")
+    private void initDriveState(int moduleCount) {
+        driveState = new DriveStateBuffer(moduleCount);
+        periodicState = new DriveState(moduleCount);
+
+        /*
+         * The odometry thread refreshes clones of these, never the instances handed out here, so they're refreshed
+         * in publishDriveState. Refreshing only reads what the device last sent, it doesn't wait on the bus
+         */
+        yawGetter = getPigeon2().getYaw();
+        angularVelocityGetter = getPigeon2().getAngularVelocityZWorld();
+        /* Measured acceleration includes gravity, the gravity vector takes it back out when the robot is tipped */
+        accelXGetter = getPigeon2().getAccelerationX();
+        accelYGetter = getPigeon2().getAccelerationY();
+        gravityXGetter = getPigeon2().getGravityVectorX();
+        gravityYGetter = getPigeon2().getGravityVectorY();
+        BaseStatusSignal.setUpdateFrequencyForAll(ACCEL_UPDATE_FREQUENCY,
+            accelXGetter, accelYGetter, gravityXGetter, gravityYGetter);
+
+        publishSignals = new BaseStatusSignal[6 + moduleCount];
+        publishSignals[0] = yawGetter;
+        publishSignals[1] = angularVelocityGetter;
+        publishSignals[2] = accelXGetter;
+        publishSignals[3] = accelYGetter;
+        publishSignals[4] = gravityXGetter;
+        publishSignals[5] = gravityYGetter;
+        drivePositionGetters = new StatusSignal[moduleCount];
+        for (int i = 0; i < moduleCount; i++) {
+            drivePositionGetters[i] = getModule(i).getDriveMotor().getPosition();
+            publishSignals[6 + i] = drivePositionGetters[i];
+        }
+
+        disturbanceDetector = new DisturbanceDetector(m_moduleLocations,
+            Constants.Drivetrain.COLLISION_ACCEL_G, Constants.Drivetrain.SKID_MODULE_ERROR,
+            Constants.Drivetrain.SKID_YAW_RATE_ERROR, Constants.Drivetrain.DISTURBANCE_HOLD_TIME);
+
+        super.registerTelemetry(this::publishDriveState);
+    }
+
+    /*
+     * Runs in the odometry thread while it holds the state lock, so m_modulePositions is consistent with the pose
+     * and m_odometry can be touched directly. Vision is fused here too, so there is only the one estimator and it
+     * runs at the odometry frequency
+     */
+    private void publishDriveState(SwerveDriveState state) {
+        if (state.Pose == null || state.ModuleStates == null) return;
+
+        BaseStatusSignal.refreshAll(publishSignals);
+        /*
+         * FPGA time, the clock the estimator and the cameras stamp with. Not Timer.getFPGATimestamp(), under
+         * AdvantageKit that's the main loop's cycle time
+         */
+        double now = Logger.getRealTimestamp() / 1e6;
+        double yawRate = Math.toRadians(angularVelocityGetter.getValueAsDouble());
+        ChassisSpeeds speeds = m_kinematics.toChassisSpeeds(state.ModuleStates);
+        boolean disturbed = disturbanceDetector.update(now,
+            accelXGetter.getValueAsDouble() - gravityXGetter.getValueAsDouble(),
+            accelYGetter.getValueAsDouble() - gravityYGetter.getValueAsDouble(),
+            yawRate, speeds.vxMetersPerSecond, speeds.vyMetersPerSecond, speeds.omegaRadiansPerSecond, state.ModuleStates);
+
+        Vision.VisionEstimate estimate;
+        while ((estimate = visionQueue.poll()) != null) {
+            var stdDevs = estimate.stdDevs();
+            if (disturbed) {
+                /*
+                 * The estimator's odometry std devs are fixed once it's built, so lean on vision instead. The gyro
+                 * isn't fooled by a skid, so heading keeps its usual trust
+                 */
+                double scale = Constants.Drivetrain.DISTURBED_VISION_STD_DEV_SCALE;
+                stdDevs = VecBuilder.fill(stdDevs.get(0, 0) * scale, stdDevs.get(1, 0) * scale, stdDevs.get(2, 0));
+            }
+            m_odometry.addVisionMeasurement(estimate.estimatedPose(), estimate.timestamp(), stdDevs);
+        }
+        state.Pose = m_odometry.getEstimatedPosition();
+
+        DriveState next = driveState.beginWrite();
+        next.timestamp = now;
+        recordOdometryHealth(state, next.timestamp);
+        next.pose = state.Pose;
+        next.gyroYaw = Rotation2d.fromDegrees(yawGetter.getValueAsDouble());
+        next.yawRate = yawRate;
+
+        double cos = state.Pose.getRotation().getCos();
+        double sin = state.Pose.getRotation().getSin();
+        next.robotVx = speeds.vxMetersPerSecond;
+        next.robotVy = speeds.vyMetersPerSecond;
+        next.omega = speeds.omegaRadiansPerSecond;
+        next.fieldVx = speeds.vxMetersPerSecond * cos - speeds.vyMetersPerSecond * sin;
+        next.fieldVy = speeds.vxMetersPerSecond * sin + speeds.vyMetersPerSecond * cos;
+
+        for (int i = 0; i < next.moduleSpeeds.length; i++) {
+            next.moduleSpeeds[i] = state.ModuleStates[i].speedMetersPerSecond;
+            next.moduleAngles[i] = state.ModuleStates[i].angle;
+            next.moduleDistances[i] = m_modulePositions[i].distanceMeters;
+            next.modulePositionAngles[i] = m_modulePositions[i].angle;
+        }
+        driveState.publish();
+        poseHistory.add(next.timestamp, next.pose.getX(), next.pose.getY(), next.pose.getRotation().getRadians(),
+            next.fieldVx, next.fieldVy, next.omega);
+
+        Consumer<SwerveDriveState> telemetry = telemetryFunction;
+        if (telemetry != null) telemetry.accept(state);
+    }
+
+    /*
+     * A module sample is stale if this update didn't refresh it, i.e. it's older than a couple of odometry periods.
+     * Signal timestamps are in CTRE's timebase, so their age is measured against CTRE's clock
+     */
+    private void recordOdometryHealth(SwerveDriveState state, double now) {
+        if (!Double.isNaN(lastPublishTime)) {
+            double staleAge = 2 * state.OdometryPeriod;
+            double signalNow = Utils.getCurrentTimeSeconds();
+            int staleModules = 0;
+            for (StatusSignal<Double> position : drivePositionGetters) {
+                if (signalNow - position.getTimestamp().getTime() > staleAge) staleModules++;
+            }
+
+            odometryHealth.record(now - lastPublishTime, state.FailedDaqs, staleModules);
+        }
+        lastPublishTime = now;
+    }
+
+    /**
+     * @return the odometry thread's health metrics
+     */
+    public OdometryHealth getOdometryHealth() {
+        return odometryHealth;
+    }
+
+    /* The drive state is published from the telemetry callback, so other telemetry gets chained after it instead of replacing it */
+    @Override
+    public void registerTelemetry(Consumer<SwerveDriveState> telemetryFunction) {
+        this.telemetryFunction = telemetryFunction;
+    }
+
+    /**
+     * Copy the drivetrain state from the latest odometry update. Safe to call from any thread, and doesn't allocate
+     *
+     * @param out the state to copy into
+     * @return the number of odometry updates so far
+     */
+    public int readDriveState(DriveState out) {
+        return driveState.read(out);
+    }
+
+    /**
+     * @return the rotation seedFieldRelative() last set. Requests get the pose relative to it, see {@link FieldPose}
+     */
+    public Rotation2d getFieldRelativeOffset() {
+        return m_fieldRelativeOffset;
+    }
+
+    /**
+     * @return the last couple seconds of fused poses, filled at the odometry frequency and stamped in FPGA time
+     */
+    public PoseHistory getPoseHistory() {
+        return poseHistory;
+    }
+
     public Runnable getRequestRunnable(Supplier<SwerveRequest> requestSupplier) {
         return () -> this.setControl(requestSupplier.get());
     }
@@ -89,10 +275,11 @@ public class SwerveDrive extends SwerveDrivetrain{
         simNotifier.startPeriodic(simLoopPeriod);
     }
 
+    /* Hand the vision estimates to the odometry thread instead of waiting on its lock */
     private void updateVisionPose() {
         var estimates = vision.getEstimatedGlobalPose();
         for (Vision.VisionEstimate estimate:estimates){
-            if(!(estimate==null)) odometry.addVisionMeasurement(estimate.estimatedPose(),estimate.timestamp(), estimate.stdDevs());
+            if(!(estimate==null)) visionQueue.offer(estimate);
         }
     }
 
@@ -111,7 +298,10 @@ public class SwerveDrive extends SwerveDrivetrain{
             });
         }
         updateVisionPose();
-        odometry.update(getPigeon2().getRotation2d(),m_modulePositions);
-        field.setRobotPose(odometry.getEstimatedPosition());
+        driveState.read(periodicState);
+        field.setRobotPose(periodicState.pose);
+        Logger.recordOutput("Drivetrain/Disturbance/Disturbed", disturbanceDetector.isDisturbed());
+        Logger.recordOutput("Drivetrain/Disturbance/Collisions", disturbanceDetector.getCollisions());
+        Logger.recordOutput("Drivetrain/Disturbance/Skids", disturbanceDetector.getSkids());
     }
 }
@@ -0,0 +1,132 @@
+package frc.robot.subsystems.Drivetrain;
+
+import com.ctre.phoenix6.mechanisms.swerve.SwerveRequest.SwerveControlRequestParameters;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+
+/**
+ * Moves the commanded chassis speeds toward the requested ones no faster than the modules can follow: no module
+ * accelerates faster than traction allows, and no moving module has to steer faster than its azimuth can turn.
+ * Only ever called from the odometry thread, by the requests in front of it, so it runs at the odometry frequency
+ */
+public class SwerveSetpointGenerator {
+    /* If no request has used the generator for this long, something else was driving, so start over from the measured speeds */
+    private static final double RESEED_TIME = 0.1;
+    /* Modules slower than this (meters per second) can point anywhere, there's nothing to steer against */
+    private static final double MIN_STEER_SPEED = 0.05;
+    /* Bisection steps when searching for the largest step that keeps every module within its steering rate */
+    private static final int STEER_ITERATIONS = 8;
+
+    private final double maxAcceleration;
+    private final double maxSteerRate;
+
+    /* Last setpoint, robot relative */
+    private double vx = 0.0, vy = 0.0, omega = 0.0;
+    private double lastTimestamp = Double.NEGATIVE_INFINITY;
+    private final ChassisSpeeds setpoint = new ChassisSpeeds();
+
+    /**
+     * @param maxAcceleration the fastest any module can accelerate without slipping, in meters per second squared
+     * @param maxSteerRate the fastest a module can turn, in radians per second
+     */
+    public SwerveSetpointGenerator(double maxAcceleration, double maxSteerRate) {
+        this.maxAcceleration = maxAcceleration;
+        this.maxSteerRate = maxSteerRate;
+    }
+
+    /**
+     * Step the setpoint toward the requested robot relative speeds. The requested speeds are discretized over the
+     * update period first, like ChassisSpeeds.discretize(), so translating while rotating doesn't drift
+     *
+     * @return the next setpoint, reused between calls
+     */
+    public ChassisSpeeds generate(double desiredVx, double desiredVy, double desiredOmega, SwerveControlRequestParameters parameters) {
+        /*
+         * ChassisSpeeds.discretize() without the Pose2d and Twist2d it allocates: the twist that ends at the pose the
+         * continuous speeds would reach after one period. Only the translation changes, rotated back by half the turn
+         * and scaled for the arc, the rotational rate stays the same
+         */
+        double halfTurn = desiredOmega * parameters.updatePeriod / 2;
+        double cosMinusOne = Math.cos(2 * halfTurn) - 1;
+        double scale = Math.abs(cosMinusOne) < 1e-9
+            ? 1.0 - halfTurn * halfTurn / 3
+            : -halfTurn * Math.sin(2 * halfTurn) / cosMinusOne;
+        double discreteVx = desiredVx * scale + desiredVy * halfTurn;
+        double discreteVy = desiredVy * scale - desiredVx * halfTurn;
+        desiredVx = discreteVx;
+        desiredVy = discreteVy;
+
+        double dt = parameters.timestamp - lastTimestamp;
+        if (dt <= 0 || dt > RESEED_TIME) {
+            ChassisSpeeds measured = parameters.currentChassisSpeed;
+            vx = measured.vxMetersPerSecond;
+            vy = measured.vyMetersPerSecond;
+            omega = measured.omegaRadiansPerSecond;
+            dt = parameters.updatePeriod;
+        }
+        lastTimestamp = parameters.timestamp;
+
+        Translation2d[] modules = parameters.swervePositions;
+        double radius = 0.0;
+        for (Translation2d module : modules) {
+            radius = Math.max(radius, module.getNorm());
+        }
+
+        double dvx = desiredVx - vx;
+        double dvy = desiredVy - vy;
+        double domega = desiredOmega - omega;
+
+        /* The module that speeds up the most sees the whole translation change plus the rotation change at its radius */
+        double worstDelta = Math.hypot(dvx, dvy) + Math.abs(domega) * radius;
+        double maxDelta = maxAcceleration * dt;
+        double fraction = worstDelta > maxDelta ? maxDelta / worstDelta : 1.0;
+
+        /* Taking no step never needs any steering, so bisect for the largest step that stays within the steering rate */
+        if (!canSteer(fraction, dvx, dvy, domega, modules, maxSteerRate * dt)) {
+            double low = 0.0, high = fraction;
+            for (int i = 0; i < STEER_ITERATIONS; i++) {
+                double mid = (low + high) / 2;
+                if (canSteer(mid, dvx, dvy, domega, modules, maxSteerRate * dt)) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            fraction = low;
+        }
+
+        vx += dvx * fraction;
+        vy += dvy * fraction;
+        omega += domega * fraction;
+
+        setpoint.vxMetersPerSecond = vx;
+        setpoint.vyMetersPerSecond = vy;
+        setpoint.omegaRadiansPerSecond = omega;
+        return setpoint;
+    }
+
+    private boolean canSteer(double fraction, double dvx, double dvy, double domega, Translation2d[] modules, double maxSteer) {
+        double nextVx = vx + dvx * fraction;
+        double nextVy = vy + dvy * fraction;
+        double nextOmega = omega + domega * fraction;
+
+        for (Translation2d module : modules) {
+            double prevX = vx - omega * module.getY();
+            double prevY = vy + omega * module.getX();
+            double nextX = nextVx - nextOmega * module.getY();
+            double nextY = nextVy + nextOmega * module.getX();
+
+            if (Math.hypot(prevX, prevY) < MIN_STEER_SPEED || Math.hypot(nextX, nextY) < MIN_STEER_SPEED) continue;
+
+            double change = Math.abs(MathUtil.angleModulus(Math.atan2(nextY, nextX) - Math.atan2(prevY, prevX)));
+            /* Past a quarter turn the module just drives the other way instead of steering all the way around */
+            if (change > Math.PI / 2) change = Math.PI - change;
+
+            if (change > maxSteer) return false;
+        }
+
+        return true;
+    }
+}
@@ -103,6 +103,7 @@ public class Indexer extends StateMachine<Indexer.State>{
 
     public void registerTransitions() {
         addOmniTransition(State.SOFT_E_STOP);
+        setSafetyState(State.SOFT_E_STOP);
         addOmniTransition(State.IDLE);
         addOmniTransition(State.INDEXING);
         addOmniTransition(State.PASS_THROUGH);
@@ -50,10 +50,15 @@ public class Intake extends StateMachine<Intake.State> {
         return inputs.proxTripped;
     }
 
+    //re-send the follower request, this blocks on CAN so it can run off the main thread
+    @Override
+    protected void prepareSelf() {
+        io.resetFollower();
+    }
+
     //override the super to always know the state of the intake
     @Override
     protected void determineSelf() {
-        io.resetFollower();
         setState(State.IDLE);
     }
 
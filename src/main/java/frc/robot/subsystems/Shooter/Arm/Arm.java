@@ -52,6 +52,7 @@ public class Arm extends StateMachine<Arm.State> {
 
   private void registerTransitions() {
     addOmniTransition(State.SOFT_E_STOP);
+    setSafetyState(State.SOFT_E_STOP);
 
     // it going from one to the other wont conflict with anything within the arm subsystem
     addOmniTransition(State.AMP);
@@ -99,8 +100,12 @@ public class Arm extends StateMachine<Arm.State> {
   }
 
   @Override
-  protected void determineSelf() {
+  protected void prepareSelf() {
     io.resetFollower();
+  }
+
+  @Override
+  protected void determineSelf() {
     setState(State.SOFT_E_STOP);
   }
 
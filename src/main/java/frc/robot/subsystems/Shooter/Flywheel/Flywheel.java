@@ -121,10 +121,14 @@ public class Flywheel extends StateMachine<Flywheel.State> {
     io.updateInputs(inputs);
   }
 
+  @Override
+  protected void prepareSelf() {
+    io.resetFollower();
+  }
+
   @Override
   protected void determineSelf() {
     // await control from shooter
-    io.resetFollower();
     setState(State.IDLE);
   }
 
@@ -9,9 +9,7 @@ import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.ConditionalCommand;
-import edu.wpi.first.wpilibj2.command.ParallelCommandGroup;
 import edu.wpi.first.wpilibj2.command.PrintCommand;
-import edu.wpi.first.wpilibj2.command.RunCommand;
 import edu.wpi.first.wpilibj2.command.SequentialCommandGroup;
 import edu.wpi.first.wpilibj2.command.WaitUntilCommand;
 import frc.robot.Constants;
@@ -59,6 +57,7 @@ public class Shooter extends StateMachine<Shooter.State> {
     addChildSubsystem(arm);
     addChildSubsystem(flywheel);
 
+    registerRegionStates();
     registerStateCommands();
     registerTransitions();
 
@@ -66,55 +65,60 @@ public class Shooter extends StateMachine<Shooter.State> {
     SmartDashboard.putData(flywheel);
   }
 
-  private void registerStateCommands() {
-    registerStateCommand(
-        State.SOFT_E_STOP,
-        new ParallelCommandGroup(
-            arm.transitionCommand(Arm.State.SOFT_E_STOP),
-            flywheel.transitionCommand(Flywheel.State.IDLE)));
+  private void registerRegionStates() {
+    // the arm and flywheel are orthogonal regions of the shooter, entering a shooter state sends
+    // both straight to their states in the same loop
+    setRegionState(State.SOFT_E_STOP, arm, Arm.State.SOFT_E_STOP);
+    setRegionState(State.SOFT_E_STOP, flywheel, Flywheel.State.IDLE);
 
-    registerStateCommand(
-        State.AMP,
-        new ParallelCommandGroup(
-            arm.transitionCommand(Arm.State.AMP),
-            flywheel.transitionCommand(Flywheel.State.AMP),
-            watchReadyCommand()));
+    setRegionState(State.AMP, arm, Arm.State.AMP);
+    setRegionState(State.AMP, flywheel, Flywheel.State.AMP);
 
-    registerStateCommand(
-        State.BASE_SHOT,
-        new ParallelCommandGroup(
-            arm.transitionCommand(Arm.State.BASE_SHOT),
-            flywheel.transitionCommand(Flywheel.State.BASE_SHOT_SPIN),
-            watchReadyCommand()));
+    setRegionState(State.BASE_SHOT, arm, Arm.State.BASE_SHOT);
+    setRegionState(State.BASE_SHOT, flywheel, Flywheel.State.BASE_SHOT_SPIN);
 
-    registerStateCommand(
-        State.AUTO_START_SHOT,
-        new ParallelCommandGroup(
-            flywheel.transitionCommand(Flywheel.State.BASE_SHOT_SPIN),
-            arm.transitionCommand(Arm.State.AUTO_START_SHOT),
-            watchReadyCommand()));
+    setRegionState(State.AUTO_START_SHOT, arm, Arm.State.AUTO_START_SHOT);
+    setRegionState(State.AUTO_START_SHOT, flywheel, Flywheel.State.BASE_SHOT_SPIN);
 
-    registerStateCommand(
-        State.CHUTE_INTAKE,
-        new ParallelCommandGroup(
-            arm.transitionCommand(Arm.State.CHUTE_INTAKE),
-            flywheel.transitionCommand(Flywheel.State.CHUTE_INTAKE),
-            watchReadyCommand()));
+    setRegionState(State.CHUTE_INTAKE, arm, Arm.State.CHUTE_INTAKE);
+    setRegionState(State.CHUTE_INTAKE, flywheel, Flywheel.State.CHUTE_INTAKE);
 
-    registerStateCommand(
-        State.STOW,
-        new ParallelCommandGroup(
-            arm.transitionCommand(Arm.State.FULL_STOW),
-            flywheel.transitionCommand(Flywheel.State.IDLE),
-            watchReadyCommand()));
+    setRegionState(State.STOW, arm, Arm.State.FULL_STOW);
+    setRegionState(State.STOW, flywheel, Flywheel.State.IDLE);
 
-    registerStateCommand(
+    setRegionState(State.PARTIAL_STOW, arm, Arm.State.PARTIAL_STOW);
+    setRegionState(State.PARTIAL_STOW, flywheel, Flywheel.State.IDLE);
+
+    setRegionState(State.SPEAKER_AA, arm, Arm.State.SHOT_ACTIVE_ADJUST);
+    setRegionState(State.SPEAKER_AA, flywheel, Flywheel.State.SPEAKER_ACTIVE_ADJUST_SPIN);
+
+    setRegionState(State.LOB_ACTIVE_ADJUST, arm, Arm.State.LOB_ACTIVE_ADJUST);
+    setRegionState(State.LOB_ACTIVE_ADJUST, flywheel, Flywheel.State.LOB_ACTIVE_ADJUST);
+
+    setRegionState(State.LOB_STRAIGHT, arm, Arm.State.LOB_STRAIGHT);
+    setRegionState(State.LOB_STRAIGHT, flywheel, Flywheel.State.LOB_STRAIGHT);
+
+    setRegionState(State.LOB_ARC, arm, Arm.State.LOB_ARC);
+    setRegionState(State.LOB_ARC, flywheel, Flywheel.State.LOB_ARC);
+
+    setRegionReadyFlag(arm, Arm.State.AT_TARGET);
+    setRegionReadyFlag(flywheel, Flywheel.State.AT_SPEED);
+    trackRegionsReady(
+        State.READY,
+        State.AMP,
+        State.BASE_SHOT,
+        State.AUTO_START_SHOT,
+        State.CHUTE_INTAKE,
+        State.STOW,
         State.PARTIAL_STOW,
-        new ParallelCommandGroup(
-            arm.transitionCommand(Arm.State.PARTIAL_STOW),
-            flywheel.transitionCommand(Flywheel.State.IDLE),
-            watchReadyCommand()));
+        State.SPEAKER_AA,
+        State.LOB_ACTIVE_ADJUST,
+        State.LOB_STRAIGHT,
+        State.LOB_ARC);
+  }
 
+  private void registerStateCommands() {
+    // these move the regions one after the other, so they stay as commands
     registerStateCommand(
         State.PASS_THROUGH,
         new SequentialCommandGroup(
@@ -126,39 +130,6 @@ public class Shooter extends StateMachine<Shooter.State> {
       partialFlywheelSpinup(),
       arm.transitionCommand(Arm.State.FULL_STOW)
      ));
-
-    // This is where we do rapid spinup stuff in the auton mode where we blast the flywheels with
-    // full power
-    // just to get them up to speed
-    registerStateCommand(
-        State.SPEAKER_AA,
-        new ParallelCommandGroup(
-            flywheel.transitionCommand(Flywheel.State.SPEAKER_ACTIVE_ADJUST_SPIN),
-            arm.transitionCommand(Arm.State.SHOT_ACTIVE_ADJUST),
-            watchReadyCommand()
-            )
-          );
-
-    registerStateCommand(
-        State.LOB_ACTIVE_ADJUST,
-        new ParallelCommandGroup(
-            flywheel.transitionCommand(Flywheel.State.LOB_ACTIVE_ADJUST),
-            arm.transitionCommand(Arm.State.LOB_ACTIVE_ADJUST),
-            watchReadyCommand()));
-
-    registerStateCommand(
-        State.LOB_STRAIGHT,
-        new ParallelCommandGroup(
-            flywheel.transitionCommand(Flywheel.State.LOB_STRAIGHT),
-            arm.transitionCommand(Arm.State.LOB_STRAIGHT),
-            watchReadyCommand()));
-
-    registerStateCommand(
-        State.LOB_ARC,
-        new ParallelCommandGroup(
-            flywheel.transitionCommand(Flywheel.State.LOB_ARC),
-            arm.transitionCommand(Arm.State.LOB_ARC),
-            watchReadyCommand()));
   }
 
   public Command enableRapidSpinup() {
@@ -178,6 +149,7 @@ public class Shooter extends StateMachine<Shooter.State> {
   private void registerTransitions() {
     // omnis cause none of these states conflict with anything within the subsystem
     addOmniTransition(State.SOFT_E_STOP);
+    setSafetyState(State.SOFT_E_STOP);
 
     addOmniTransition(State.BASE_SHOT);
     addOmniTransition(State.AUTO_START_SHOT);
@@ -218,17 +190,6 @@ public class Shooter extends StateMachine<Shooter.State> {
     return flywheel.transitionCommand(Flywheel.State.AMP);
   }
 
-  private Command watchReadyCommand() {
-    return new RunCommand(
-        () -> {
-          if (arm.isFlag(Arm.State.AT_TARGET) && flywheel.isFlag(Flywheel.State.AT_SPEED)) {
-            setFlag(State.READY);
-          } else {
-            clearFlag(State.READY);
-          }
-        });
-  }
-
   private double armLobAA() {
     double distance = getCornerDistance();
 
@@ -0,0 +1,112 @@
+package frc.robot.SMF;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class StateMachineTest {
+  // the transition stats publish every 250 loops, so the measured loops take in two publishes
+  private static final int STATS_PUBLISH_LOOPS = 250;
+  private static final int WARMUP_LOOPS = STATS_PUBLISH_LOOPS * 40;
+  private static final int MEASURED_LOOPS = STATS_PUBLISH_LOOPS * 2;
+
+  private enum State {
+    UNDETERMINED,
+    IDLE,
+    RUNNING,
+    LOW,
+    HIGH,
+    READY
+  }
+
+  private static class TestMachine extends StateMachine<State> {
+    TestMachine() {
+      super("TestMachine", State.UNDETERMINED, State.class);
+      addOmniTransitions(State.IDLE, State.RUNNING, State.LOW, State.HIGH);
+      setStatePriority(State.HIGH, 1);
+    }
+
+    @Override
+    protected void determineSelf() {
+      setState(State.IDLE);
+    }
+  }
+
+  @BeforeAll
+  static void initializeHal() {
+    assertTrue(HAL.initialize(500, 0));
+  }
+
+  @Test
+  void steadyStatePeriodicDoesNotAllocate() {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    TestMachine machine = new TestMachine();
+    machine.enable();
+    machine.requestTransition(State.RUNNING);
+    machine.periodic();
+    assertEquals(State.RUNNING, machine.getState());
+    machine.setFlag(State.READY);
+
+    for (int i = 0; i < WARMUP_LOOPS; i++) {
+      machine.periodic();
+    }
+
+    long before = threads.getCurrentThreadAllocatedBytes();
+    for (int i = 0; i < MEASURED_LOOPS; i++) {
+      machine.periodic();
+    }
+    long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+    assertEquals(0, allocated, "bytes allocated over " + MEASURED_LOOPS + " loops");
+  }
+
+  @Test
+  void asyncPriorityRequestsApplyHighestPriorityFirst() {
+    TestMachine machine = new TestMachine();
+    machine.enable();
+
+    assertTrue(machine.requestPriorityTransitionAsync(State.LOW));
+    assertTrue(machine.requestPriorityTransitionAsync(State.HIGH));
+    machine.periodic();
+
+    // HIGH started first and was entered this loop, LOW waited behind it and has now started
+    assertEquals(State.HIGH, machine.getState());
+    assertEquals(State.LOW, machine.getCurrentTransition().getEndState());
+  }
+
+  @Test
+  void disableDropsPendingRequests() {
+    TestMachine machine = new TestMachine();
+    machine.enable();
+
+    machine.requestTransition(State.RUNNING);
+    // waits behind the transition to RUNNING
+    machine.requestTransition(State.LOW);
+    machine.disable();
+
+    machine.enable();
+    machine.periodic();
+
+    assertEquals(State.IDLE, machine.getState());
+    assertFalse(machine.isTransitioning());
+  }
+
+  @Test
+  void currentFlagsAreReadOnly() {
+    TestMachine machine = new TestMachine();
+    machine.enable();
+    machine.setFlag(State.READY);
+
+    assertThrows(
+        UnsupportedOperationException.class, () -> machine.getCurrentFlags().add(State.RUNNING));
+    assertTrue(machine.getCurrentFlags().contains(State.READY));
+  }
+}
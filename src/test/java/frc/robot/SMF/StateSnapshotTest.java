@@ -0,0 +1,103 @@
+package frc.robot.SMF;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StateSnapshotTest {
+  // slow enough that the writer thread never runs during a test, the tests write by hand
+  private static final double WRITES_PER_SECOND = 0.001;
+
+  @TempDir Path directory;
+
+  private enum State {
+    UNDETERMINED,
+    IDLE,
+    RUNNING,
+    READY
+  }
+
+  private static class TestMachine extends StateMachine<State> {
+    TestMachine(String name) {
+      super(name, State.UNDETERMINED, State.class);
+      addOmniTransitions(State.IDLE, State.RUNNING);
+    }
+
+    @Override
+    protected void determineSelf() {
+      setState(State.IDLE);
+    }
+  }
+
+  @BeforeAll
+  static void initializeHal() {
+    assertTrue(HAL.initialize(500, 0));
+  }
+
+  private Path writeSnapshot() throws IOException {
+    Path path = directory.resolve("snapshot.bin");
+    TestMachine first = new TestMachine("First");
+    TestMachine second = new TestMachine("Second");
+
+    first.enable();
+    first.requestTransition(State.RUNNING);
+    first.periodic();
+    first.setFlag(State.READY);
+    second.enable();
+
+    StateSnapshot snapshot =
+        new StateSnapshot(path, List.of(first, second), 60, WRITES_PER_SECOND);
+    snapshot.capture();
+    snapshot.write();
+    return path;
+  }
+
+  @Test
+  void restoresThePreviousRun() throws IOException {
+    Path path = writeSnapshot();
+
+    TestMachine first = new TestMachine("First");
+    TestMachine second = new TestMachine("Second");
+    StateSnapshot snapshot =
+        new StateSnapshot(path, List.of(first, second), 60, WRITES_PER_SECOND);
+
+    assertEquals(2, snapshot.restore());
+    assertEquals(State.RUNNING, first.getState());
+    assertTrue(first.getCurrentFlags().contains(State.READY));
+    assertEquals(State.IDLE, second.getState());
+    assertFalse(second.getCurrentFlags().contains(State.READY));
+  }
+
+  @Test
+  void ignoresAStaleSnapshot() throws IOException, InterruptedException {
+    Path path = writeSnapshot();
+    Thread.sleep(20);
+
+    TestMachine first = new TestMachine("First");
+    TestMachine second = new TestMachine("Second");
+    StateSnapshot snapshot =
+        new StateSnapshot(path, List.of(first, second), 0.01, WRITES_PER_SECOND);
+
+    assertEquals(0, snapshot.restore());
+    assertFalse(first.isDetermined());
+  }
+
+  @Test
+  void ignoresADifferentSetOfMachines() throws IOException {
+    Path path = writeSnapshot();
+
+    TestMachine first = new TestMachine("First");
+    StateSnapshot snapshot = new StateSnapshot(path, List.of(first), 60, WRITES_PER_SECOND);
+
+    assertEquals(0, snapshot.restore());
+    assertFalse(first.isDetermined());
+  }
+}
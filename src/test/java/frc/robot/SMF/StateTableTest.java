@@ -0,0 +1,85 @@
+package frc.robot.SMF;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import frc.robot.SMF.annotations.Flag;
+import frc.robot.SMF.annotations.Omni;
+import frc.robot.SMF.annotations.StateGraph;
+import frc.robot.SMF.annotations.Transition;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class StateTableTest {
+  @StateGraph
+  enum State {
+    UNDETERMINED,
+    @Omni
+    IDLE,
+    @Transition(to = "SHOOTING", commutative = true)
+    AIMING,
+    @Transition(to = "IDLE")
+    SHOOTING,
+    @Flag
+    READY
+  }
+
+  private static class TableMachine extends StateMachine<State> {
+    TableMachine() {
+      super("TableMachine", StateTableTestStateTable.INSTANCE);
+      addTransition(State.IDLE, State.AIMING);
+    }
+
+    @Override
+    protected void determineSelf() {
+      setState(State.IDLE);
+    }
+  }
+
+  @BeforeAll
+  static void initializeHal() {
+    assertTrue(HAL.initialize(500, 0));
+  }
+
+  @Test
+  void tableMatchesTheAnnotations() {
+    StateTable<State> table = StateTableTestStateTable.INSTANCE;
+
+    assertEquals(State.class, table.getEnumType());
+    assertEquals(State.UNDETERMINED, table.getUndeterminedState());
+    assertEquals(State.values().length, table.getStates().length);
+    assertEquals("SHOOTING", table.getName(State.SHOOTING.ordinal()));
+    assertTrue(table.isOmni(State.IDLE.ordinal()));
+    assertFalse(table.isOmni(State.AIMING.ordinal()));
+    assertTrue(table.isFlag(State.READY.ordinal()));
+
+    // AIMING -> SHOOTING, SHOOTING -> AIMING from commutative, then SHOOTING -> IDLE
+    assertEquals(3, table.getTransitionCount());
+    assertEquals(State.AIMING.ordinal(), table.getTransitionStart(0));
+    assertEquals(State.SHOOTING.ordinal(), table.getTransitionEnd(0));
+    assertEquals(State.SHOOTING.ordinal(), table.getTransitionStart(1));
+    assertEquals(State.AIMING.ordinal(), table.getTransitionEnd(1));
+    assertEquals(State.IDLE.ordinal(), table.getTransitionEnd(2));
+  }
+
+  @Test
+  void machineRoutesThroughTheGeneratedTransitions() {
+    TableMachine machine = new TableMachine();
+    machine.enable();
+    assertEquals(State.IDLE, machine.getState());
+
+    // no direct transition, so this goes IDLE -> AIMING -> SHOOTING
+    machine.requestTransition(State.SHOOTING);
+    machine.periodic();
+    assertEquals(State.AIMING, machine.getState());
+    machine.periodic();
+    assertEquals(State.SHOOTING, machine.getState());
+
+    // back to IDLE through the omni transition
+    machine.requestTransition(State.IDLE);
+    machine.periodic();
+    assertEquals(State.IDLE, machine.getState());
+  }
+}
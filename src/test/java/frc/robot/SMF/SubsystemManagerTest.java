@@ -0,0 +1,77 @@
+package frc.robot.SMF;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.hal.HAL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class SubsystemManagerTest {
+  private enum State {
+    UNDETERMINED,
+    IDLE
+  }
+
+  private static class SlowMachine extends StateMachine<State> {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger prepares = new AtomicInteger();
+
+    SlowMachine() {
+      super("SlowMachine", State.UNDETERMINED, State.class);
+    }
+
+    @Override
+    protected void prepareSelf() {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      prepares.incrementAndGet();
+    }
+
+    @Override
+    protected void determineSelf() {
+      setState(State.IDLE);
+    }
+  }
+
+  @BeforeAll
+  static void initializeHal() {
+    assertTrue(HAL.initialize(500, 0));
+  }
+
+  @Test
+  void latePrepareIsDeterminedOnceItFinishes() throws InterruptedException {
+    SubsystemManager manager = new SubsystemManager();
+    SlowMachine machine = new SlowMachine();
+    manager.registerSubsystem(machine, false);
+    manager.setParallelDetermination(true, 0.01);
+
+    manager.prepSubsystems();
+    // the worker is still in prepareSelf(), so the machine can't be determined yet
+    assertFalse(machine.isDetermined());
+    assertEquals(0, machine.prepares.get());
+
+    machine.release.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (machine.isPreparing() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    manager.settleSubsystems();
+
+    assertEquals(State.IDLE, machine.getState());
+    assertEquals(1, machine.prepares.get());
+
+    // the next mode start prepares again instead of reusing the late preparation
+    manager.disableAllSubsystems();
+    manager.prepSubsystems();
+    assertEquals(State.IDLE, machine.getState());
+    assertEquals(2, machine.prepares.get());
+  }
+}
@@ -0,0 +1,65 @@
+package frc.robot.subsystems.Drivetrain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+
+class FieldPoseTest {
+    private static final double EPSILON = 1e-9;
+
+    /* What Phoenix hands a request: the fused pose relative to the field relative offset */
+    private static Pose2d requestPose(Pose2d fused, Rotation2d offset) {
+        return fused.relativeTo(new Pose2d(0, 0, offset));
+    }
+
+    @Test
+    void recoversTheFusedPoseAfterSeeding() {
+        Rotation2d offset = Rotation2d.fromDegrees(135);
+        FieldPose fieldPose = new FieldPose(() -> offset);
+        Pose2d fused = new Pose2d(3.2, 6.1, Rotation2d.fromDegrees(-100));
+
+        fieldPose.update(requestPose(fused, offset));
+
+        assertEquals(fused.getX(), fieldPose.getX(), EPSILON);
+        assertEquals(fused.getY(), fieldPose.getY(), EPSILON);
+        assertEquals(fused.getRotation().getRadians(), fieldPose.getTheta(), EPSILON);
+        assertEquals(fused.getRotation().getCos(), fieldPose.getCos(), EPSILON);
+        assertEquals(fused.getRotation().getSin(), fieldPose.getSin(), EPSILON);
+    }
+
+    @Test
+    void fieldHeadingTargetHasNoErrorOnceFacedAfterSeeding() {
+        /* e.g. the driver re-seeded facing the side wall, then a note was seen straight ahead */
+        Rotation2d offset = Rotation2d.fromDegrees(90);
+        FieldPose fieldPose = new FieldPose(() -> offset);
+        Pose2d fused = new Pose2d(5, 2, Rotation2d.fromDegrees(30));
+        double target = fused.getRotation().getRadians();
+
+        Pose2d seen = requestPose(fused, offset);
+        fieldPose.update(seen);
+
+        assertEquals(0, MathUtil.angleModulus(target - fieldPose.getTheta()), EPSILON);
+        /* the request's own heading is off by the whole offset */
+        assertEquals(offset.getRadians(), MathUtil.angleModulus(target - seen.getRotation().getRadians()), EPSILON);
+    }
+
+    @Test
+    void followsTheOffsetWhenItChanges() {
+        Rotation2d[] offset = {new Rotation2d()};
+        FieldPose fieldPose = new FieldPose(() -> offset[0]);
+        Pose2d fused = new Pose2d(1, 2, Rotation2d.fromDegrees(10));
+
+        fieldPose.update(requestPose(fused, offset[0]));
+        assertEquals(1, fieldPose.getX(), EPSILON);
+
+        offset[0] = Rotation2d.fromDegrees(180);
+        fieldPose.update(requestPose(fused, offset[0]));
+        assertEquals(1, fieldPose.getX(), EPSILON);
+        assertEquals(2, fieldPose.getY(), EPSILON);
+        assertEquals(fused.getRotation().getRadians(), fieldPose.getTheta(), EPSILON);
+    }
+}
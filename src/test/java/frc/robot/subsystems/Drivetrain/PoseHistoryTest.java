@@ -0,0 +1,58 @@
+package frc.robot.subsystems.Drivetrain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PoseHistoryTest {
+    private static final double EPSILON = 1e-9;
+    private static final double ODOMETRY_HZ = 250;
+
+    /* Drive along x at 1 m/s, turning at 1 rad/s, for the given number of seconds */
+    private static PoseHistory drive(double seconds) {
+        PoseHistory history = new PoseHistory(ODOMETRY_HZ);
+        int samples = (int) Math.round(seconds * ODOMETRY_HZ);
+        for (int i = 0; i <= samples; i++) {
+            double t = i / ODOMETRY_HZ;
+            history.add(t, t, 0, Math.IEEEremainder(t, 2 * Math.PI), 1, 0, 1);
+        }
+        return history;
+    }
+
+    @Test
+    void reachesTheFullHistoryAtTheOdometryRate() {
+        /* Long enough that the ring has wrapped several times */
+        double seconds = 10;
+        PoseHistory history = drive(seconds);
+        double[] sample = new double[6];
+
+        assertTrue(history.getCapacity() >= PoseHistory.HISTORY_SECONDS * ODOMETRY_HZ);
+        assertTrue(history.getSampleAt(seconds - PoseHistory.HISTORY_SECONDS, sample));
+        assertEquals(seconds - PoseHistory.HISTORY_SECONDS, sample[PoseHistory.X], EPSILON);
+        assertFalse(history.getSampleAt(seconds - history.getCapacity() / ODOMETRY_HZ, sample));
+    }
+
+    @Test
+    void interpolatesBetweenSamples() {
+        PoseHistory history = drive(1);
+        double[] sample = new double[6];
+        double timestamp = 0.5 + 0.5 / ODOMETRY_HZ;
+
+        assertTrue(history.getSampleAt(timestamp, sample));
+        assertEquals(timestamp, sample[PoseHistory.X], EPSILON);
+        assertEquals(timestamp, sample[PoseHistory.THETA], EPSILON);
+        assertEquals(1, sample[PoseHistory.VX], EPSILON);
+    }
+
+    @Test
+    void extrapolatesOnlyAShortWayPastTheNewestSample() {
+        PoseHistory history = drive(1);
+        double[] sample = new double[6];
+
+        assertTrue(history.getSampleAt(1 + PoseHistory.MAX_EXTRAPOLATION / 2, sample));
+        assertEquals(1 + PoseHistory.MAX_EXTRAPOLATION / 2, sample[PoseHistory.X], EPSILON);
+        assertFalse(history.getSampleAt(1 + PoseHistory.MAX_EXTRAPOLATION * 2, sample));
+    }
+}